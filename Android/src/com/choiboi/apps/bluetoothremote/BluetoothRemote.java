@@ -45,7 +45,6 @@ public class BluetoothRemote extends Activity {
     // Key names received from the BluetoothCommandService Handler
     public static final String DEVICE_NAME = "device_name";
     public static final String TOAST = "toast";
-    public static final String DEVICE_CONNECTED = "DEVICE_CONNECTED";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -220,8 +219,7 @@ public class BluetoothRemote extends Activity {
                     mTitle.append(" " + mConnectedDeviceName);
 
                     // Send the name of the connected device to the server
-                    String command = DEVICE_CONNECTED + ":" + mLocalDeviceName;
-                    mBluetoothService.write(command.getBytes()); 
+                    mBluetoothService.sendHello(mLocalDeviceName);
 
                     // Move to screen for presentation controls
                     startPresentationMode();
@@ -1,22 +1,37 @@
 package com.choiboi.apps.bluetoothremote;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.choiboi.apps.bluetoothremote.presentationmode.PresentationMode;
+import com.choiboi.apps.bluetoothremote.presentationmode.SlideCache;
+import com.choiboi.apps.bluetoothremote.protocol.FragmentDamagedException;
+import com.choiboi.apps.bluetoothremote.protocol.FrameDecoder;
+import com.choiboi.apps.bluetoothremote.protocol.FrameEncoder;
+import com.choiboi.apps.bluetoothremote.protocol.Protocol;
+import com.choiboi.apps.bluetoothremote.protocol.TileCache;
+import com.choiboi.apps.bluetoothremote.protocol.TileDecoder;
 
 public class BluetoothService {
 
@@ -30,7 +45,16 @@ public class BluetoothService {
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
-    private String mLocalDeviceName;
+    private int[] mDisplayBounds = new int[0];
+    private int mCapturedDisplay = -1;
+    private final SlideCache mSlideCache;
+    private final Handler mStallTimer;
+
+    // Decoding state kept from a lost connection, so connecting to the same
+    // server again resumes the session instead of starting over
+    private DecodeThread mDecodeThread;
+    private FrameDecoder mResumeDecoder;
+    private String mSessionAddress;
 
     // UUID for this application
     private static final UUID _UUID = UUID.fromString("C46C11A9-3E42-4F64-AB1E-FC892E87B9DE");
@@ -41,24 +65,30 @@ public class BluetoothService {
     public static final int STATE_CONNECTING = 2;   // Now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;    // Now connected to a remote device
 
-    // Constants that indicate command to computer
-    public static final String EXIT_CMD = "EXIT";
-    
-    // Acknowledge from the server
-    private static final String ACKNOWLEDGE = "<ACK>";
-    private static final String ACKNOWLEDGE_CMD_RECEIVED = "<ACK-CMD-RECEIVED>";
-    private static final String ACKNOWLEDGE_IMG_CAN_RECEIVE = "<ACK-IMG-CAN-RECEIVE>";
-    private static final String ACKNOWLEDGE_IMG_SENDING = "<ACK-IMG-SENDING>";
-    private static final String ACKNOWLEDGE_IMG_RECEIVED = "<ACK-IMG-RECEIVED>";
+    // Maximum number of commands queued while the command window is full
+    private static final int COMMAND_QUEUE_CAPACITY = 32;
+
+    // Share of the heap a screenshot may take in full colour before it is
+    // kept as RGB_565 instead, which halves its size
+    private static final int FRAME_HEAP_DIVISOR = 8;
+
+    // Longest the DecodeThread waits for PresentationMode to show a screenshot
+    // before drawing the next one into the other bitmap
+    private static final long FRAME_SHOWN_TIMEOUT_MS = 500;
+
+    // Longest a screenshot may go without a fragment arriving before the
+    // next chunk is asked for again
+    private static final long FRAGMENT_STALL_TIMEOUT_MS = 2000;
 
     public BluetoothService(Context context, Handler handler) {
         Log.i(TAG, "++ BluetoothService ++");
         
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        mLocalDeviceName = mBluetoothAdapter.getName();
         mState = STATE_NONE;
         mBtRemoteHandler = handler;
         mPresModeHandler = null;
+        mSlideCache = new SlideCache(new File(context.getCacheDir(), "slides"));
+        mStallTimer = new Handler();
     }
 
     public synchronized void start() {
@@ -96,6 +126,11 @@ public class BluetoothService {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        endSession();
+
+        // Only called when BluetoothRemote is destroyed, which creates a new
+        // service and cache when it is created again
+        mSlideCache.close();
 
         setState(STATE_NONE);
     }
@@ -149,6 +184,23 @@ public class BluetoothService {
         return mBluetoothAdapter.getName();
     }
 
+    /*
+     * Return the bounds of the displays of the server, packed as x, y, width
+     * and height of each display in turn. Empty until the server has sent
+     * them.
+     */
+    public synchronized int[] getDisplayBounds() {
+        return mDisplayBounds;
+    }
+
+    /*
+     * Return the index of the display the server captures, or -1 if it
+     * captures a custom region.
+     */
+    public synchronized int getCapturedDisplay() {
+        return mCapturedDisplay;
+    }
+
     /*
      * Start the ConnectThread to initiate a connection to a remote device.
      * 
@@ -165,10 +217,12 @@ public class BluetoothService {
             }
         }
 
-        // Cancel any thread currently running a connection
+        // Cancel any thread currently running a connection, which ends its
+        // session on the server too
         if (mConnectedThread != null) {
             mConnectedThread.cancel();
             mConnectedThread = null;
+            endSession();
         }
 
         // Start the thread to connect with the given device
@@ -193,14 +247,26 @@ public class BluetoothService {
             mConnectThread = null;
         }
 
-        // Cancel any thread currently running a connection
+        // Cancel any thread currently running a connection, which ends its
+        // session on the server too
         if (mConnectedThread != null) {
             mConnectedThread.cancel();
             mConnectedThread = null;
+            endSession();
+        }
+
+        // Go on with the session of a lost connection to the same server, or
+        // start a new one
+        if (mDecodeThread == null || !mDecodeThread.isRunning() || !device.getAddress().equals(mSessionAddress)) {
+            endSession();
+            mDecodeThread = new DecodeThread();
+            mDecodeThread.start();
+            mSessionAddress = device.getAddress();
         }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
+        mConnectedThread = new ConnectedThread(socket, mDecodeThread, mResumeDecoder);
+        mResumeDecoder = null;
         mConnectedThread.start();
 
         // Send the name of the connected device back to the UI Activity
@@ -213,6 +279,37 @@ public class BluetoothService {
         setState(STATE_CONNECTED);
     }
 
+    /*
+     * The connection of the given thread has ended. If it was lost, the
+     * decoding state is kept for a new connection to the same server,
+     * otherwise the session is over.
+     * 
+     * @param resumeDecoder decoder of the lost connection, or null if the
+     * session is over
+     */
+    private synchronized void connectionEnded(ConnectedThread thread, FrameDecoder resumeDecoder) {
+        // A newer connection has taken over or ended the session already
+        if (mConnectedThread != thread)
+            return;
+
+        if (resumeDecoder != null)
+            mResumeDecoder = resumeDecoder;
+        else
+            endSession();
+    }
+
+    /*
+     * Drop the decoding state of the last session. Called holding the lock.
+     */
+    private void endSession() {
+        if (mDecodeThread != null) {
+            mDecodeThread.cancel();
+            mDecodeThread = null;
+        }
+        mResumeDecoder = null;
+        mSessionAddress = null;
+    }
+
     /*
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
@@ -271,14 +368,129 @@ public class BluetoothService {
     }
 
     /*
-     * Write to the ConnectedThread in an unsynchronized manner.
+     * Send the name of this device and the session to go on with to the
+     * server. This must be the first frame sent after a connection has been
+     * made.
+     * 
+     * @param deviceName name of this device
+     */
+    public void sendHello(String deviceName) {
+        Log.i(TAG, "--- sendHello ---");
+
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED)
+                return;
+            r = mConnectedThread;
+        }
+        r.sendHello(deviceName);
+    }
+
+    /*
+     * Tell the server the size of the view screenshots are displayed in, so it
+     * can scale them down before sending.
+     * 
+     * @param width width of the view in pixels
+     * 
+     * @param height height of the view in pixels
+     * 
+     * @param densityDpi screen density of this device
+     */
+    public void sendDisplayInfo(int width, int height, int densityDpi) {
+        Log.i(TAG, "--- sendDisplayInfo ---");
+
+        byte[] payload = new byte[Protocol.DISPLAY_INFO_LENGTH];
+        FrameEncoder.writeInt(payload, 0, width);
+        FrameEncoder.writeInt(payload, 4, height);
+        FrameEncoder.writeInt(payload, 8, densityDpi);
+        writeFrame(Protocol.TYPE_DISPLAY_INFO, payload, payload.length);
+    }
+
+    /*
+     * Send a command to the server. Commands are pipelined: up to
+     * Protocol.COMMAND_WINDOW of them may be outstanding before the server
+     * acknowledges them, and any beyond that are queued by the ConnectedThread.
+     * 
+     * An arrow command is sent right away unless earlier commands are still
+     * unacknowledged, in which case it is queued, and the same one sent again
+     * meanwhile only adds to its repeat count, so skipping several slides
+     * costs one command and one screenshot.
+     * 
+     * @param command one of the Protocol.CMD_ constants
+     * 
+     * @param program one of the Protocol.PROGRAM_ constants
+     */
+    public void sendCommand(int command, int program) {
+        Log.i(TAG, "--- sendCommand ---");
+
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED)
+                return;
+            r = mConnectedThread;
+        }
+        r.sendCommand(command, program, 1);
+    }
+
+    private static boolean isArrowCommand(int command) {
+        return command == Protocol.CMD_LEFT || command == Protocol.CMD_RIGHT || command == Protocol.CMD_UP
+                || command == Protocol.CMD_DOWN;
+    }
+
+    /*
+     * Turn the live preview on or off. While it is on, the server keeps pushing
+     * screenshots at a rate the connection and this device can keep up with.
+     * 
+     * @param streaming true to start the live preview
+     */
+    public void sendStream(boolean streaming) {
+        Log.i(TAG, "--- sendStream ---");
+
+        byte[] payload = new byte[Protocol.STREAM_LENGTH];
+        payload[0] = (byte) (streaming ? 1 : 0);
+        writeFrame(Protocol.TYPE_STREAM, payload, payload.length);
+    }
+
+    /*
+     * Ask the server to capture another one of its displays.
+     * 
+     * @param index index of the display in getDisplayBounds()
+     */
+    public void sendSelectDisplay(int index) {
+        Log.i(TAG, "--- sendSelectDisplay ---");
+
+        byte[] payload = new byte[Protocol.SELECT_DISPLAY_LENGTH];
+        FrameEncoder.writeInt(payload, 0, index);
+        writeFrame(Protocol.TYPE_SELECT_DISPLAY, payload, payload.length);
+    }
+
+    /*
+     * Tell the DecodeThread that PresentationMode now shows this screenshot,
+     * so the next one may be drawn into the other bitmap.
      * 
-     * @param out The bytes to write
+     * @param frame bitmap passed with the RECEIVED_IMAGE message
+     */
+    public void frameShown(Bitmap frame) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED)
+                return;
+            r = mConnectedThread;
+        }
+        r.frameShown(frame);
+    }
+
+    /*
+     * Write a frame to the ConnectedThread in an unsynchronized manner.
+     * 
+     * @param type one of the Protocol.TYPE_ constants
      * 
-     * @see ConnectedThread#write(byte[])
+     * @param payload The bytes to write
+     * 
+     * @see ConnectedThread#writeFrame(int, int, byte[], int)
      */
-    public void write(byte[] out) {
-        Log.i(TAG, "--- write ---");
+    private void writeFrame(int type, byte[] payload, int length) {
+        Log.i(TAG, "--- writeFrame ---");
 
         // Create temporary object
         ConnectedThread r;
@@ -289,7 +501,7 @@ public class BluetoothService {
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        r.write(out);
+        r.writeFrame(type, 0, payload, length);
     }
 
     /*
@@ -368,10 +580,49 @@ public class BluetoothService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final FrameDecoder mmDecoder;
+        private final FrameEncoder mmEncoder;
+        
+        // Commands waiting for room in the window, packed as
+        // command << 16 | program << 8 | repeat
+        private final int[] mmQueuedCommands = new int[COMMAND_QUEUE_CAPACITY];
+        private int mmQueueHead;
+        private int mmQueueCount;
+        private int mmLastCommandSent;
+        private int mmLastCommandAcked;
+        private final byte[] mmResendPayload = new byte[Protocol.RESEND_LENGTH];
+        
+        // Decodes screenshots while this thread reads the next frame
+        private final DecodeThread mmDecodeThread;
+        
+        // Frame and chunk of the session the decoder goes on from
+        private final int mmResumeSequence;
+        private final int mmResumeChunk;
+        
+        // Asks for the next chunk again while a screenshot is stalled
+        private volatile boolean mmReading = true;
+        private final Runnable mmStallCheck = new Runnable() {
+            public void run() {
+                if (!mmReading)
+                    return;
+                long stalled = mmDecoder.getStalledChunk(FRAGMENT_STALL_TIMEOUT_MS);
+                if (stalled != -1) {
+                    Log.w(TAG, "Screenshot stalled, asking for chunk " + (int) stalled + " again");
+                    sendResend((int) (stalled >>> 32), (int) stalled);
+                }
+                mStallTimer.postDelayed(this, FRAGMENT_STALL_TIMEOUT_MS);
+            }
+        };
         
         private boolean mIsDisconnect;
         
-        public ConnectedThread(BluetoothSocket socket) {
+        /*
+         * @param decodeThread DecodeThread of the session, already started
+         * 
+         * @param resumeDecoder decoder of the lost connection of the session,
+         * or null if the session is new
+         */
+        public ConnectedThread(BluetoothSocket socket, DecodeThread decodeThread, FrameDecoder resumeDecoder) {
             Log.i(TAG, "+++ create ConnectedThread +++");
 
             mmSocket = socket;
@@ -388,6 +639,13 @@ public class BluetoothService {
 
             mmInStream = tmpInStream;
             mmOutStream = tmpOutStream;
+            mmDecoder = resumeDecoder != null ? new FrameDecoder(tmpInStream, resumeDecoder)
+                    : new FrameDecoder(tmpInStream);
+            mmEncoder = new FrameEncoder(tmpOutStream);
+            mmDecodeThread = decodeThread;
+            mmDecodeThread.attach(socket, mmEncoder);
+            mmResumeSequence = mmDecoder.getResumeSequence();
+            mmResumeChunk = mmDecoder.getResumeChunk();
             
             // Initially set it to false as the user did not choose to disconnect
             mIsDisconnect = false;
@@ -396,98 +654,194 @@ public class BluetoothService {
         public void run() {
             Log.i(TAG, "+++ BEGIN mConnectedThread +++");
             
-            byte[] buffer = new byte[512];
-            int bytes;
-            
+            mStallTimer.postDelayed(mmStallCheck, FRAGMENT_STALL_TIMEOUT_MS);
             while (true) {
-                try {                    
-                    bytes = mmInStream.read(buffer);
-                    String receivedData = new String(buffer, 0, bytes);
-                    
-                    // If the server successfully receives the commands, then
-                    // send ack that it is ready to receive a screenshot
-                    if (receivedData.equals(ACKNOWLEDGE_CMD_RECEIVED)) {
+                try {
+                    if (!mmDecoder.readFrame())
+                        throw new IOException("Server closed the connection");
+
+                    switch (mmDecoder.getType()) {
+                    case Protocol.TYPE_COMMAND_ACK:
+                        // The server has processed the commands, so a screenshot
+                        // follows once it has run out of commands to process
                         if (mPresModeHandler != null) {
                             mPresModeHandler.obtainMessage(PresentationMode.IMAGE_TRANSFER_START).sendToTarget();
                         }
-                        receiveScreenshot();
+                        onCommandAck(mmDecoder.getSequence());
+                        break;
+                    case Protocol.TYPE_IMAGE:
+                    case Protocol.TYPE_IMAGE_UNCHANGED:
+                    case Protocol.TYPE_IMAGE_CACHED:
+                        // Unchanged screenshots go through the DecodeThread
+                        // too, so acknowledgements are sent in order
+                        mmDecodeThread.enqueue(mmDecoder);
+                        break;
+                    case Protocol.TYPE_DISPLAY_LIST:
+                        receiveDisplayList();
+                        break;
+                    case Protocol.TYPE_SESSION:
+                        // The server no longer held the session, so the
+                        // screenshot being gathered is never finished
+                        if (mmDecoder.getPayloadByte(0) == 0)
+                            mmDecoder.dropBulkFrame();
+                        break;
                     }
+                } catch (FragmentDamagedException e) {
+                    // Ask for the frame again from the damaged chunk on, and
+                    // keep reading the frames sent meanwhile
+                    Log.w(TAG, e.getMessage());
+                    sendResend(e.getSequence(), e.getChunk());
                 } catch (IOException e) {
                     Log.e(TAG, "disconnected", e);
+                    stopStallCheck();
                     // Invoke connectionLost() only if it lost connection with the server
                     if (!mIsDisconnect) {
                         connectionLost();
                     }
+                    connectionEnded(this, mIsDisconnect ? null : mmDecoder);
                     BluetoothService.this.start();
                     return;
                 } catch (Exception e) {
                     e.printStackTrace();
+                    stopStallCheck();
+                    connectionEnded(this, null);
                     return;
                 }
             }
         }
 
         /*
-         * Write to the connected OutStream.
+         * Send a command right away if the window has room for it, otherwise
+         * queue it until the server acknowledges earlier commands. Arrow
+         * commands are also queued while any command is unacknowledged, so a
+         * burst of them is merged. If the last command queued is the same,
+         * the repeat counts are merged instead, and the program sent with the
+         * last of them is kept unless it is PROGRAM_NONE.
+         */
+        public synchronized void sendCommand(int command, int program, int repeat) {
+            boolean unacked = mmLastCommandSent != mmLastCommandAcked;
+            if (mmQueueCount == 0 && mmLastCommandSent - mmLastCommandAcked < Protocol.COMMAND_WINDOW
+                    && !(unacked && isArrowCommand(command))) {
+                writeCommand(command, program, repeat);
+                return;
+            }
+
+            if (mmQueueCount > 0 && isArrowCommand(command)) {
+                int last = (mmQueueHead + mmQueueCount - 1) % COMMAND_QUEUE_CAPACITY;
+                int packed = mmQueuedCommands[last];
+                if (packed >>> 16 == command && (packed & 0xFF) + repeat <= Protocol.MAX_COMMAND_REPEAT) {
+                    int merged = program != Protocol.PROGRAM_NONE ? program : (packed >>> 8) & 0xFF;
+                    mmQueuedCommands[last] = (command << 16) | (merged << 8) | ((packed & 0xFF) + repeat);
+                    return;
+                }
+            }
+
+            if (mmQueueCount == COMMAND_QUEUE_CAPACITY) {
+                Log.w(TAG, "Command queue full, dropping command");
+                return;
+            }
+            mmQueuedCommands[(mmQueueHead + mmQueueCount) % COMMAND_QUEUE_CAPACITY] = (command << 16)
+                    | (program << 8) | repeat;
+            mmQueueCount++;
+        }
+
+        /*
+         * Handle a cumulative acknowledgement and send queued commands that
+         * now fit in the window.
+         * 
+         * @param sequence highest command sequence number processed by the server
+         */
+        private synchronized void onCommandAck(int sequence) {
+            if (sequence - mmLastCommandAcked > 0)
+                mmLastCommandAcked = sequence;
+
+            while (mmQueueCount > 0 && mmLastCommandSent - mmLastCommandAcked < Protocol.COMMAND_WINDOW) {
+                int packed = mmQueuedCommands[mmQueueHead];
+                mmQueueHead = (mmQueueHead + 1) % COMMAND_QUEUE_CAPACITY;
+                mmQueueCount--;
+                writeCommand(packed >>> 16, (packed >>> 8) & 0xFF, packed & 0xFF);
+            }
+        }
+
+        /*
+         * Write a command frame to the connected OutStream.
+         */
+        private void writeCommand(int command, int program, int repeat) {
+            try {
+                Log.i(TAG, "++ write command to outstream ++");
+                mmEncoder.writeFrame(Protocol.TYPE_COMMAND, ++mmLastCommandSent, command, program, repeat);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            }
+        }
+
+        private void stopStallCheck() {
+            mmReading = false;
+            mStallTimer.removeCallbacks(mmStallCheck);
+        }
+
+        /*
+         * Send the name of this device, the session of the DecodeThread and
+         * where the decoder stopped in it.
+         * 
+         * @param deviceName name of this device
+         */
+        public void sendHello(String deviceName) {
+            try {
+                byte[] name = deviceName.getBytes("UTF-8");
+                byte[] payload = new byte[Protocol.HELLO_HEADER_LENGTH + name.length];
+                long sessionId = mmDecodeThread.getSessionId();
+                FrameEncoder.writeInt(payload, 0, (int) (sessionId >>> 32));
+                FrameEncoder.writeInt(payload, 4, (int) sessionId);
+                FrameEncoder.writeInt(payload, 8, mmResumeSequence);
+                FrameEncoder.writeInt(payload, 12, mmResumeChunk);
+                System.arraycopy(name, 0, payload, Protocol.HELLO_HEADER_LENGTH, name.length);
+                writeFrame(Protocol.TYPE_HELLO, 0, payload, payload.length);
+            } catch (UnsupportedEncodingException e) {
+                Log.e(TAG, "UTF-8 not supported", e);
+            }
+        }
+
+        /*
+         * Ask the server to send a damaged or stalled frame again. Called on
+         * this thread and by the stall check.
          * 
-         * @param buffer The bytes to write
+         * @param chunk index of the first chunk to send again
          */
-        public void write(byte[] buffer) {
+        private synchronized void sendResend(int sequence, int chunk) {
+            FrameEncoder.writeInt(mmResendPayload, 0, chunk);
+            writeFrame(Protocol.TYPE_RESEND, sequence, mmResendPayload, mmResendPayload.length);
+        }
+
+        /*
+         * Write a frame to the connected OutStream.
+         * 
+         * @param payload The bytes to write
+         */
+        public void writeFrame(int type, int sequence, byte[] payload, int length) {
             try {
-                Log.i(TAG, "++ write wrote to outstream ++");
-                mmOutStream.write(buffer);
+                Log.i(TAG, "++ write frame to outstream ++");
+                mmEncoder.writeFrame(type, sequence, payload, 0, length);
             } catch (IOException e) {
                 Log.e(TAG, "Exception during write", e);
             }
         }
         
         /*
-         * Handles with receiving the image from the server. Decodes the
-         * data received from InputStream to an image and signals the 
-         * PresentationMode Activity and it has the image to be updated with.
+         * Keep the list of displays of the server, which may arrive before
+         * the PresentationMode Activity is started.
          */
-        public void receiveScreenshot() {
-            Log.i(TAG, "--- receiveScreenshot ---");
+        private void receiveDisplayList() throws IOException {
+            Log.i(TAG, "--- receiveDisplayList ---");
             
-            byte[] buffer = new byte[512];
-            int bytes;
+            int count = mmDecoder.getPayloadInt(0);
+            int[] bounds = new int[count * 4];
+            for (int i = 0; i < bounds.length; i++)
+                bounds[i] = mmDecoder.getPayloadInt(Protocol.DISPLAY_LIST_HEADER_LENGTH + i * 4);
             
-            try {
-                // Notify server that image can be sent
-                mmOutStream.write(ACKNOWLEDGE_IMG_CAN_RECEIVE.getBytes());
-                
-                // Receive that image will be sent
-                bytes = mmInStream.read(buffer);
-                if (!ACKNOWLEDGE_IMG_SENDING.equals(new String(buffer, 0, bytes))) 
-                    return;
-                
-                // Send acknowledgment
-                mmOutStream.write(ACKNOWLEDGE.getBytes());
-                
-                // Receive image
-                // Read Image from the InputStream and decode it into bitmap
-                BitmapFactory.Options Bitmp_Options = new BitmapFactory.Options();
-                Bitmp_Options.inJustDecodeBounds = true;
-                mmInStream.mark(mmInStream.available());
-                Bitmap bmp = BitmapFactory.decodeStream(mmInStream);
-                
-                // Send the obtained image to PresentationMode Activity
-                if (mPresModeHandler != null)
-                    mPresModeHandler.obtainMessage(PresentationMode.RECEIVED_IMAGE, -1, -1, bmp).sendToTarget();
-                
-                // Send Acknowledge image received
-                mmOutStream.write(ACKNOWLEDGE_IMG_RECEIVED.getBytes());
-            } catch (IOException e) {
-                Log.e(TAG, "disconnected", e);
-                // Invoke connectionLost() only if it lost connection with the server
-                if (!mIsDisconnect) {
-                    connectionLost();
-                }
-                BluetoothService.this.start();
-                return;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
+            synchronized (BluetoothService.this) {
+                mDisplayBounds = bounds;
+                mCapturedDisplay = mmDecoder.getPayloadInt(4);
             }
         }
         
@@ -522,14 +876,506 @@ public class BluetoothService {
             BluetoothService.this.start();
         }
 
+        /*
+         * @see DecodeThread#frameShown(Bitmap)
+         */
+        public void frameShown(Bitmap frame) {
+            mmDecodeThread.frameShown(frame);
+        }
+
         public void cancel() {
             try {
-                String command = mLocalDeviceName + ":" + EXIT_CMD;
-                mmOutStream.write(command.getBytes());
+                // Commands still queued are dropped on purpose: the user is
+                // leaving the presentation, so moving it further on would
+                // only change the slide behind their back
+                synchronized (this) {
+                    mmEncoder.writeFrame(Protocol.TYPE_COMMAND, ++mmLastCommandSent, Protocol.CMD_EXIT,
+                            Protocol.PROGRAM_NONE, 1);
+                }
                 mmSocket.close();
             } catch (IOException e) {
                 Log.e(TAG, "close() of connect socket failed", e);
             }
         }
     }
+
+    /*
+     * This thread decodes the screenshots read by the ConnectedThread, so a
+     * slow decode never holds up reading the next frame off the socket. Every
+     * frame patches the one before it and updates the tile cache, so frames
+     * are decoded in the order received and none are skipped.
+     *
+     * Screenshots are drawn into two bitmaps in turn. PresentationMode shows
+     * the front one while the back one is brought up to date and patched, and
+     * the two swap roles when the finished bitmap is handed to the Handler.
+     * The back bitmap is only drawn into once PresentationMode has confirmed
+     * that it shows the front one.
+     *
+     * The thread outlives a lost connection along with its bitmaps and tile
+     * cache, and is attached to the next connection to the same server, which
+     * resumes the session named by its session id.
+     */
+    private class DecodeThread extends Thread {
+        private final long mmSessionId = new Random().nextLong();
+        private volatile BluetoothSocket mmSocket;
+        private volatile FrameEncoder mmEncoder;
+        private final BlockingQueue<ReceivedFrame> mmFrames = new LinkedBlockingQueue<ReceivedFrame>();
+        private final Queue<ReceivedFrame> mmFreeFrames = new ConcurrentLinkedQueue<ReceivedFrame>();
+        private final TileDecoder mmTileDecoder = new TileDecoder();
+        private final TileCache mmTileCache = new TileCache();
+        private final byte[] mmAckPayload = new byte[Protocol.IMAGE_ACK_LENGTH];
+        private final byte[] mmMissPayload = new byte[Protocol.SLIDE_MISS_LENGTH];
+        private final Canvas mmCanvas = new Canvas();
+        private final int[] mmScratch = new int[Protocol.TILE_SIZE * Protocol.TILE_SIZE];
+
+        // Tiles drawn into the front screenshot that the back one does not
+        // have yet, packed as x, y, width and height
+        private Bitmap mmFront;
+        private Bitmap mmBack;
+        private int[] mmFrontTiles = new int[64 * 4];
+        private int mmFrontTileCount;
+        private boolean mmFrontShown = true;
+        private volatile boolean mmCancelled;
+
+        // Set while PresentationMode is stopped: the back screenshot holds
+        // frames nobody was given, while PresentationMode may still hold the
+        // front one, so the front one is never drawn into or recycled
+        private boolean mmBackPending;
+        private boolean mmReplacedPending;
+        private boolean mmCopyWholeFront;
+
+        // A slide reference missed, so the frames after it are patches on a
+        // slide this device does not show, until one has every tile
+        private boolean mmAwaitingFullFrame;
+
+        public DecodeThread() {
+            Log.i(TAG, "+++ create DecodeThread +++");
+        }
+
+        /*
+         * Send acknowledgements on a new connection from now on.
+         */
+        public void attach(BluetoothSocket socket, FrameEncoder encoder) {
+            mmSocket = socket;
+            mmEncoder = encoder;
+        }
+
+        public long getSessionId() {
+            return mmSessionId;
+        }
+
+        /*
+         * Return false once the thread has been cancelled or has given up on
+         * the session after a malformed screenshot.
+         */
+        public boolean isRunning() {
+            return isAlive() && !mmCancelled;
+        }
+
+        public void run() {
+            Log.i(TAG, "+++ BEGIN mDecodeThread +++");
+
+            setName("DecodeThread");
+            try {
+                while (!mmCancelled) {
+                    ReceivedFrame frame = mmFrames.take();
+                    try {
+                        if (frame.mmType == Protocol.TYPE_IMAGE) {
+                            decodeScreenshot(frame);
+                        } else if (frame.mmType == Protocol.TYPE_IMAGE_CACHED) {
+                            showCachedSlide(frame);
+                        } else if (mmBackPending && mPresModeHandler != null) {
+                            // PresentationMode is back, so show the frames
+                            // drawn while it was stopped
+                            showBack(frame.mmSequence, false, SystemClock.uptimeMillis());
+                        } else {
+                            // The screen has not changed, so keep showing the
+                            // current screenshot and just acknowledge it
+                            sendImageAck(frame.mmSequence, 0);
+                        }
+                    } finally {
+                        mmFreeFrames.add(frame);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Connection closed
+            } catch (IOException e) {
+                // A malformed screenshot leaves the tile cache out of step with
+                // the server, so drop the connection
+                Log.e(TAG, "Exception during decode", e);
+                try {
+                    mmSocket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "close() of connect socket failed", e2);
+                }
+            } finally {
+                mmTileDecoder.release();
+            }
+        }
+
+        /*
+         * Take the frame last read by the decoder and queue it for decoding.
+         * Called on the ConnectedThread. The payload buffer is swapped with
+         * that of a pooled frame rather than copied, so this only allocates
+         * while the queue is deeper than it has been before.
+         */
+        public void enqueue(FrameDecoder decoder) {
+            ReceivedFrame frame = mmFreeFrames.poll();
+            if (frame == null)
+                frame = new ReceivedFrame();
+            frame.takeFrom(decoder);
+            mmFrames.add(frame);
+        }
+
+        /*
+         * PresentationMode now shows this screenshot, so the other one may be
+         * drawn into.
+         */
+        public synchronized void frameShown(Bitmap frame) {
+            if (frame == mmFront) {
+                mmFrontShown = true;
+                notifyAll();
+            }
+        }
+
+        public void cancel() {
+            mmCancelled = true;
+            interrupt();
+        }
+
+        /*
+         * Handles a screenshot frame received from the server. Each changed
+         * tile is decoded from the payload, or copied from the tile cache if
+         * the server only sent a reference, and drawn into the back
+         * screenshot. Slides are also kept in the slide cache. The
+         * PresentationMode Activity is then signalled that it has the image
+         * to be updated with.
+         */
+        private void decodeScreenshot(ReceivedFrame frame) throws IOException, InterruptedException {
+            Log.i(TAG, "--- decodeScreenshot ---");
+
+            int frameWidth = frame.readInt(0);
+            int frameHeight = frame.readInt(4);
+            int regionCount = frame.readInt(8);
+            long slideHash = frame.readLong(12);
+
+            if (!awaitFrontShown())
+                releaseBack();
+            long start = SystemClock.uptimeMillis();
+            boolean replaced = prepareBack(frameWidth, frameHeight, true);
+
+            // Patch every changed tile into the back screenshot
+            mmFrontTileCount = 0;
+            int offset = Protocol.IMAGE_HEADER_LENGTH;
+            for (int i = 0; i < regionCount; i++) {
+                int x = frame.readInt(offset);
+                int y = frame.readInt(offset + 4);
+                int width = frame.readInt(offset + 8);
+                int height = frame.readInt(offset + 12);
+                int codec = frame.readInt(offset + 16);
+                long hash = frame.readLong(offset + 20);
+                int length = frame.readInt(offset + 28);
+                offset += Protocol.REGION_HEADER_LENGTH;
+                if (offset + length > frame.mmLength)
+                    throw new IOException("Tile data runs past the end of the payload");
+
+                if (codec == Protocol.CODEC_TILE_REF) {
+                    int[] cached = mmTileCache.get(hash);
+                    if (cached != null)
+                        mmBack.setPixels(cached, 0, width, x, y, width, height);
+                    else
+                        Log.e(TAG, "Tile missing from cache: " + Long.toHexString(hash));
+                } else {
+                    int[] tile = mmTileCache.obtainArray();
+                    if (!mmTileDecoder.decode(codec, frame.mmPayload, offset, length, width, height, tile))
+                        Log.e(TAG, "Could not decode tile at " + x + "," + y);
+                    mmBack.setPixels(tile, 0, width, x, y, width, height);
+
+                    // Always cache the tile, even if it failed to decode, so
+                    // the cache stays in step with the server's model of it
+                    mmTileCache.put(hash, tile);
+                }
+                addFrontTile(x, y, width, height);
+                offset += length;
+            }
+
+            // After a slide miss, patches are decoded so the tile cache stays
+            // in step with the server, but only shown once a frame has
+            // redrawn every tile. The back screenshot is then left as it is,
+            // as that frame draws over all of it.
+            if (mmAwaitingFullFrame) {
+                int tilesAcross = (frameWidth + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+                int tilesDown = (frameHeight + Protocol.TILE_SIZE - 1) / Protocol.TILE_SIZE;
+                if (regionCount < tilesAcross * tilesDown) {
+                    Log.w(TAG, "Dropping patch on a missed slide");
+                    mmFrontTileCount = 0;
+                    sendImageAck(frame.mmSequence, 0);
+                    return;
+                }
+                mmAwaitingFullFrame = false;
+            }
+
+            if (slideHash != Protocol.NO_SLIDE)
+                mSlideCache.put(slideHash, mmBack);
+            showBack(frame.mmSequence, replaced, start);
+        }
+
+        /*
+         * Handles a reference to a slide received before. The slide is drawn
+         * into the back screenshot from the slide cache and shown, or the
+         * server is told to send it again if it is no longer cached.
+         */
+        private void showCachedSlide(ReceivedFrame frame) throws IOException, InterruptedException {
+            Log.i(TAG, "--- showCachedSlide ---");
+
+            int frameWidth = frame.readInt(0);
+            int frameHeight = frame.readInt(4);
+            long slideHash = frame.readLong(8);
+
+            if (!awaitFrontShown())
+                releaseBack();
+            long start = SystemClock.uptimeMillis();
+            Bitmap slide = mSlideCache.get(slideHash, chooseFrameConfig(frameWidth, frameHeight));
+            if (slide == null || slide.getWidth() != frameWidth || slide.getHeight() != frameHeight) {
+                // Keep showing the current screenshot until the server
+                // resends the slide in full
+                Log.w(TAG, "Slide missing from cache: " + Long.toHexString(slideHash));
+                mmAwaitingFullFrame = true;
+                sendSlideMiss(frame.mmSequence, slideHash);
+                sendImageAck(frame.mmSequence, 0);
+                return;
+            }
+
+            boolean replaced = prepareBack(frameWidth, frameHeight, false);
+            mmAwaitingFullFrame = false;
+            mmCanvas.setBitmap(mmBack);
+            mmCanvas.drawBitmap(slide, 0, 0, null);
+
+            // Every tile changed, so all of them have to be carried over into
+            // the other screenshot
+            mmFrontTileCount = 0;
+            for (int y = 0; y < frameHeight; y += Protocol.TILE_SIZE) {
+                for (int x = 0; x < frameWidth; x += Protocol.TILE_SIZE) {
+                    addFrontTile(x, y, Math.min(Protocol.TILE_SIZE, frameWidth - x),
+                            Math.min(Protocol.TILE_SIZE, frameHeight - y));
+                }
+            }
+            showBack(frame.mmSequence, replaced, start);
+        }
+
+        /*
+         * Swap the screenshots and send the finished one to the
+         * PresentationMode Activity. While it is stopped the finished one
+         * stays in the back bitmap until it is started again, as the front
+         * one may still be in its ImageView.
+         *
+         * @param sequence sequence number of the frame
+         *
+         * @param replaced true if the size changed
+         *
+         * @param start uptime at which decoding the frame started
+         */
+        private void showBack(int sequence, boolean replaced, long start) throws IOException {
+            Handler handler = mPresModeHandler;
+            if (handler == null) {
+                // Nobody took the screenshot, so keep drawing the next ones
+                // into the back bitmap, which already has every tile
+                mmBackPending = true;
+                mmReplacedPending |= replaced;
+                mmFrontTileCount = 0;
+            } else {
+                Bitmap finished = mmBack;
+                mmBack = mmFront;
+                synchronized (this) {
+                    mmFront = finished;
+                    mmFrontShown = false;
+                }
+                mmCopyWholeFront = mmBackPending;
+                handler.obtainMessage(PresentationMode.RECEIVED_IMAGE,
+                        replaced || mmReplacedPending ? PresentationMode.FRAME_REPLACED : 0, -1, finished)
+                        .sendToTarget();
+                mmBackPending = false;
+                mmReplacedPending = false;
+            }
+
+            // Send Acknowledge image received along with how long it took to
+            // decode, so the server can pace the live preview
+            sendImageAck(sequence, (int) (SystemClock.uptimeMillis() - start));
+        }
+
+        /*
+         * Make the back screenshot the given size and, if it is to be
+         * patched, match the front one so the new tiles can be drawn over it.
+         * Returns true if the size changed and the front screenshot was given
+         * up, in which case PresentationMode recycles it once it no longer
+         * shows it.
+         *
+         * @param carryOver false if the whole back screenshot is drawn over
+         */
+        private boolean prepareBack(int width, int height, boolean carryOver) {
+            boolean copyWholeFront = mmCopyWholeFront;
+            mmCopyWholeFront = false;
+            boolean replaced = false;
+            if (mmFront != null && (mmFront.getWidth() != width || mmFront.getHeight() != height)) {
+                // The server sends every tile after a change of size, so
+                // nothing needs to be carried over
+                mmFront = null;
+                mmFrontTileCount = 0;
+                replaced = true;
+            }
+
+            if (mmBack != null && (mmBack.getWidth() != width || mmBack.getHeight() != height)) {
+                // Never shown since the front one was, so free it right away
+                mmBack.recycle();
+                mmBack = null;
+            }
+
+            if (mmBack == null) {
+                if (mmFront != null && carryOver)
+                    mmBack = mmFront.copy(mmFront.getConfig(), true);
+                else
+                    mmBack = Bitmap.createBitmap(width, height, chooseFrameConfig(width, height));
+                return replaced;
+            }
+
+            if (!carryOver)
+                return replaced;
+
+            // Frames were drawn while PresentationMode was stopped, so the
+            // back screenshot is behind everywhere
+            if (copyWholeFront && mmFront != null) {
+                mmCanvas.setBitmap(mmBack);
+                mmCanvas.drawBitmap(mmFront, 0, 0, null);
+                return replaced;
+            }
+
+            // Copy over the tiles the last frame drew into the front one
+            for (int i = 0; i < mmFrontTileCount; i += 4) {
+                int x = mmFrontTiles[i];
+                int y = mmFrontTiles[i + 1];
+                int w = mmFrontTiles[i + 2];
+                int h = mmFrontTiles[i + 3];
+                mmFront.getPixels(mmScratch, 0, w, x, y, w, h);
+                mmBack.setPixels(mmScratch, 0, w, x, y, w, h);
+            }
+            return replaced;
+        }
+
+        /*
+         * Block until PresentationMode shows the front screenshot, so the
+         * back one is not drawn into while it may still be on screen. Returns
+         * false if it did not within FRAME_SHOWN_TIMEOUT_MS.
+         */
+        private synchronized boolean awaitFrontShown() throws InterruptedException {
+            long deadline = SystemClock.uptimeMillis() + FRAME_SHOWN_TIMEOUT_MS;
+            while (!mmFrontShown && mPresModeHandler != null) {
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) {
+                    Log.w(TAG, "Screenshot not shown in time");
+                    return false;
+                }
+                wait(wait);
+            }
+            return true;
+        }
+
+        /*
+         * PresentationMode may still show the back screenshot, so give it up
+         * for PresentationMode to recycle once it no longer does. The next
+         * frame is drawn into a new bitmap copied from the front one.
+         */
+        private void releaseBack() {
+            Handler handler = mPresModeHandler;
+            if (mmBack != null && handler != null)
+                handler.obtainMessage(PresentationMode.RELEASED_IMAGE, mmBack).sendToTarget();
+            mmBack = null;
+        }
+
+        private void addFrontTile(int x, int y, int width, int height) {
+            if (mmFrontTileCount + 4 > mmFrontTiles.length) {
+                int[] grown = new int[mmFrontTiles.length * 2];
+                System.arraycopy(mmFrontTiles, 0, grown, 0, mmFrontTileCount);
+                mmFrontTiles = grown;
+            }
+            mmFrontTiles[mmFrontTileCount++] = x;
+            mmFrontTiles[mmFrontTileCount++] = y;
+            mmFrontTiles[mmFrontTileCount++] = width;
+            mmFrontTiles[mmFrontTileCount++] = height;
+        }
+
+        /*
+         * Pick the bitmap config for screenshots of the given size. The
+         * server already scales screenshots to the size of the slide view, so
+         * they are never decoded larger than shown. Slides are opaque, so when
+         * two full colour screenshots would take too much of the heap RGB_565
+         * is used, halving their memory for a small loss of colour depth.
+         */
+        private Bitmap.Config chooseFrameConfig(int width, int height) {
+            long fullColourBytes = 2L * width * height * 4;
+            if (fullColourBytes > Runtime.getRuntime().maxMemory() / FRAME_HEAP_DIVISOR)
+                return Bitmap.Config.RGB_565;
+            return Bitmap.Config.ARGB_8888;
+        }
+
+        /*
+         * Tell the server a referenced slide is not in the slide cache.
+         *
+         * @param sequence sequence number of the TYPE_IMAGE_CACHED frame
+         */
+        private void sendSlideMiss(int sequence, long slideHash) throws IOException {
+            FrameEncoder.writeInt(mmMissPayload, 0, (int) (slideHash >>> 32));
+            FrameEncoder.writeInt(mmMissPayload, 4, (int) slideHash);
+            mmEncoder.writeFrame(Protocol.TYPE_SLIDE_MISS, sequence, mmMissPayload, 0, mmMissPayload.length);
+        }
+
+        /*
+         * Acknowledge a screenshot frame.
+         *
+         * @param sequence sequence number of the frame
+         *
+         * @param decodeMs time taken to decode and draw the frame
+         */
+        private void sendImageAck(int sequence, int decodeMs) {
+            FrameEncoder.writeInt(mmAckPayload, 0, decodeMs);
+            try {
+                mmEncoder.writeFrame(Protocol.TYPE_IMAGE_ACK, sequence, mmAckPayload, 0, mmAckPayload.length);
+            } catch (IOException e) {
+                // Lost with the connection, which the ConnectedThread notices.
+                // Acknowledgements are cumulative, so the next one covers it
+                // once the session is resumed.
+                Log.e(TAG, "Exception during write", e);
+            }
+        }
+    }
+
+    /*
+     * Frame handed from the ConnectedThread to the DecodeThread. Its payload
+     * array goes back to the FrameDecoder when the next frame is taken, so
+     * the same few arrays are read into for the whole connection.
+     */
+    private static class ReceivedFrame {
+        private int mmType;
+        private int mmSequence;
+        private int mmLength;
+        private byte[] mmPayload = new byte[0];
+
+        void takeFrom(FrameDecoder decoder) {
+            mmType = decoder.getType();
+            mmSequence = decoder.getSequence();
+            mmLength = decoder.getLength();
+            mmPayload = decoder.swapPayload(mmPayload);
+        }
+
+        int readInt(int offset) throws IOException {
+            if (offset < 0 || offset + 4 > mmLength)
+                throw new IOException("Payload too short for int at " + offset);
+            return FrameDecoder.readInt(mmPayload, offset);
+        }
+
+        long readLong(int offset) throws IOException {
+            if (offset < 0 || offset + 8 > mmLength)
+                throw new IOException("Payload too short for long at " + offset);
+            return FrameDecoder.readLong(mmPayload, offset);
+        }
+    }
 }
@@ -0,0 +1,51 @@
+package com.choiboi.apps.bluetoothremote.presentationmode;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.View;
+import android.view.Window;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import com.choiboi.apps.bluetoothremote.R;
+
+public class DisplaySelectActivity extends Activity {
+
+    // Debugging
+    private static final String TAG = "DisplaySelectActivity";
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Log.i(TAG, "++ onCreate ++");
+
+        // Setup the window
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+        setContentView(R.layout.display_list);
+
+        // Set result CANCELED incase the user backs out
+        setResult(Activity.RESULT_CANCELED);
+
+        // Setup dialog to display list of displays of the computer
+        String[] displays = getIntent().getStringArrayExtra(PresentationMode.DISPLAYS);
+        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, R.layout.device_name, displays);
+        ListView listView = (ListView) findViewById(R.id.display_list);
+        listView.setAdapter(adapter);
+
+        listView.setOnItemClickListener(new OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                // Create result Intent and include the index of the display
+                Intent intent = new Intent();
+                intent.putExtra(PresentationMode.DISPLAY_INDEX, position);
+
+                // Set result and finish this Activity
+                setResult(Activity.RESULT_OK, intent);
+                finish();
+            }
+        });
+    }
+}
@@ -13,6 +13,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver.OnGlobalLayoutListener;
 import android.view.Window;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -21,6 +22,7 @@ import android.widget.Toast;
 import com.choiboi.apps.bluetoothremote.ActivitiesBridge;
 import com.choiboi.apps.bluetoothremote.BluetoothService;
 import com.choiboi.apps.bluetoothremote.R;
+import com.choiboi.apps.bluetoothremote.protocol.Protocol;
 
 public class PresentationMode extends Activity {
 
@@ -31,8 +33,12 @@ public class PresentationMode extends Activity {
     private BluetoothService mBluetoothService;
     private String mConnectedDeviceName;
     private String mLocalDeviceName;
-    private String mPresentationProgram = "";
+    private int mPresentationProgram = Protocol.PROGRAM_NONE;
     private GestureDetector mGestureDetector;
+    private int mReportedWidth;
+    private int mReportedHeight;
+    private boolean mLivePreview;
+    private Bitmap mShownBitmap;
 
     // Layout
     private TextView mTitle;
@@ -41,29 +47,21 @@ public class PresentationMode extends Activity {
     public static final String BLUETOOTH_SERVICE = "BluetoothService";
     public static final String CONNECTED_DEVICE_NAME = "connected_device_name";
     public static final String PROGRAM = "program";
+    public static final String DISPLAYS = "displays";
+    public static final String DISPLAY_INDEX = "display_index";
 
     // Intent request codes
     private static final int REQUEST_PROGRAM_USED = 1;
+    private static final int REQUEST_DISPLAY = 2;
 
     // Message types sent from BluetoothService Handler
     public static final int RECEIVED_IMAGE = 1;
     public static final int CONNECTION_LOST = 2;
     public static final int IMAGE_TRANSFER_START = 3;
+    public static final int RELEASED_IMAGE = 4;
 
-    // Constants that indicate command to computer
-    private static final String CMD = "CMD";
-    private static final String LEFT = "LEFT";
-    private static final String DOWN = "DOWN";
-    private static final String UP = "UP";
-    private static final String RIGHT = "RIGHT";
-    private static final String GO_FULLSCREEN = "GO_FULLSCREEN";
-    private static final String EXIT_FULLSCREEN = "EXIT_FULLSCREEN";
-    private static final String APP_STARTED = "APP_STARTED";
-
-    // Presentation program constants also used as commands sent to computer
-    private static final String BROWSER = "BROWSER";
-    private static final String MICROSOFT_POWERPOINT = "MICRO_PPT";
-    private static final String ADOBE_READER = "ADOBE_PDF";
+    // Set in arg1 of RECEIVED_IMAGE when the screenshot shown before is given up
+    public static final int FRAME_REPLACED = 1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -96,6 +94,15 @@ public class PresentationMode extends Activity {
         // Setup gesture detection
         mGestureDetector = new GestureDetector(getApplicationContext(),
                 new SwipeGestureDetector(mBluetoothService, mLocalDeviceName));
+
+        // Report the size of the slide view to the server whenever it changes
+        final ImageView slideView = (ImageView) findViewById(R.id.slide_image);
+        slideView.getViewTreeObserver().addOnGlobalLayoutListener(new OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                reportDisplayInfo(slideView.getWidth(), slideView.getHeight());
+            }
+        });
     }
 
     @Override
@@ -105,8 +112,11 @@ public class PresentationMode extends Activity {
 
         mBluetoothService.setPresModeHandler(mHandler);
 
-        String command = CMD + ":" + mLocalDeviceName + ":" + APP_STARTED;
-        mBluetoothService.write(command.getBytes());
+        mBluetoothService.sendCommand(Protocol.CMD_APP_STARTED, mPresentationProgram);
+
+        // Resume the live preview if it was on when this Activity was hidden
+        if (mLivePreview)
+            mBluetoothService.sendStream(true);
     }
 
     @Override
@@ -114,6 +124,10 @@ public class PresentationMode extends Activity {
         super.onStop();
         Log.i(TAG, "++ onStop ++");
 
+        // Nobody is watching the slides, so stop the live preview
+        if (mLivePreview)
+            mBluetoothService.sendStream(false);
+
         mBluetoothService.removePresModeHandler();
     }
 
@@ -135,37 +149,52 @@ public class PresentationMode extends Activity {
 
     /*
      * This function is invoked whenever anyone of the buttons on this Activity
-     * has been pressed. It will determine which button was pressed, create the
-     * correct command format in string, and then send it off to be sent to the
-     * server.
+     * has been pressed. It will determine which button was pressed and send
+     * the matching command to the server.
      */
     public void controlButtonPressed(View v) {
         Log.i(TAG, "--- controlButtonPressed ---");
 
-        String command = CMD + ":" + mLocalDeviceName + ":";
+        int command;
 
         switch (v.getId()) {
         case R.id.left_arrow:
-            command += LEFT;
+            command = Protocol.CMD_LEFT;
             break;
         case R.id.right_arrow:
-            command += RIGHT;
+            command = Protocol.CMD_RIGHT;
             break;
         case R.id.up_arrow:
-            command += UP;
+            command = Protocol.CMD_UP;
             break;
         case R.id.down_arrow:
-            command += DOWN;
+            command = Protocol.CMD_DOWN;
             break;
         case R.id.go_fullscreen:
-            command += GO_FULLSCREEN + ":" + mPresentationProgram;
+            command = Protocol.CMD_GO_FULLSCREEN;
             break;
         case R.id.exit_fullscreen:
-            command += EXIT_FULLSCREEN + ":" + mPresentationProgram;
+            command = Protocol.CMD_EXIT_FULLSCREEN;
             break;
+        default:
+            return;
         }
 
-        mBluetoothService.write(command.getBytes());
+        mBluetoothService.sendCommand(command, mPresentationProgram);
+    }
+
+    /*
+     * Send the size of the view slides are shown in to the server, so that it
+     * sends screenshots at exactly that size.
+     */
+    private void reportDisplayInfo(int width, int height) {
+        if (width <= 0 || height <= 0 || (width == mReportedWidth && height == mReportedHeight))
+            return;
+        Log.i(TAG, "--- reportDisplayInfo ---");
+
+        mReportedWidth = width;
+        mReportedHeight = height;
+        mBluetoothService.sendDisplayInfo(width, height, getResources().getDisplayMetrics().densityDpi);
     }
 
     /*
@@ -179,6 +208,34 @@ public class PresentationMode extends Activity {
         startActivityForResult(serverIntent, REQUEST_PROGRAM_USED);
     }
 
+    /*
+     * This will start an Activity which opens up a dialog asking the user to
+     * select which display of the computer to show.
+     */
+    private void selectDisplayDialog() {
+        Log.i(TAG, "--- selectDisplayDialog ---");
+
+        int[] bounds = mBluetoothService.getDisplayBounds();
+        if (bounds.length == 0) {
+            Toast.makeText(getApplicationContext(), R.string.no_displays, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Describe each display by its number, size and position
+        int captured = mBluetoothService.getCapturedDisplay();
+        String[] displays = new String[bounds.length / 4];
+        for (int i = 0; i < displays.length; i++) {
+            displays[i] = getResources().getString(R.string.display) + " " + (i + 1) + ": " + bounds[i * 4 + 2]
+                    + " x " + bounds[i * 4 + 3] + " at (" + bounds[i * 4] + ", " + bounds[i * 4 + 1] + ")";
+            if (i == captured)
+                displays[i] += " *";
+        }
+
+        Intent displayIntent = new Intent(this, DisplaySelectActivity.class);
+        displayIntent.putExtra(DISPLAYS, displays);
+        startActivityForResult(displayIntent, REQUEST_DISPLAY);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Log.i(TAG, "++ onOptionsItemSelected ++");
@@ -187,6 +244,14 @@ public class PresentationMode extends Activity {
         case R.id.change_presentation_program:
             selectProgramDialog();
             return true;
+        case R.id.select_display:
+            selectDisplayDialog();
+            return true;
+        case R.id.live_preview:
+            mLivePreview = !item.isChecked();
+            item.setChecked(mLivePreview);
+            mBluetoothService.sendStream(mLivePreview);
+            return true;
         }
         return false;
     }
@@ -199,6 +264,12 @@ public class PresentationMode extends Activity {
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         Log.i(TAG, "++ onActivityResult ++");
 
+        if (requestCode == REQUEST_DISPLAY) {
+            if (resultCode == Activity.RESULT_OK)
+                mBluetoothService.sendSelectDisplay(data.getIntExtra(DISPLAY_INDEX, 0));
+            return;
+        }
+
         if (resultCode == Activity.RESULT_OK) {
             String progSelection = data.getExtras().getString(PROGRAM);
             TextView modeTitle = (TextView) findViewById(R.id.presentation_mode_title);
@@ -206,11 +277,11 @@ public class PresentationMode extends Activity {
             modeTitle.append(" " + progSelection);
             
             if (progSelection.equals(getResources().getString(R.string.micro_ppt))) {
-                mPresentationProgram = MICROSOFT_POWERPOINT;
+                mPresentationProgram = Protocol.PROGRAM_MICRO_PPT;
             } else if (progSelection.equals(getResources().getString(R.string.adobe_pdf))) {
-                mPresentationProgram = ADOBE_READER;
+                mPresentationProgram = Protocol.PROGRAM_ADOBE_PDF;
             } else if (progSelection.equals(getResources().getString(R.string.browser))) {
-                mPresentationProgram = BROWSER;
+                mPresentationProgram = Protocol.PROGRAM_BROWSER;
             } 
         } else {
             selectProgramDialog();
@@ -229,15 +300,39 @@ public class PresentationMode extends Activity {
                 Bitmap b = (Bitmap) msg.obj;
                 ImageView tv = (ImageView) findViewById(R.id.slide_image);
                 tv.setImageBitmap(b);
-                Toast.makeText(getApplicationContext(), R.string.slide_updated, Toast.LENGTH_SHORT).show();
+                
+                // BluetoothService draws the next screenshot into the bitmap
+                // shown before once it knows this one is shown
+                if (mBluetoothService != null)
+                    mBluetoothService.frameShown(b);
+                
+                // When the size changed BluetoothService never touches the old
+                // screenshot again, so free it now that it is no longer shown
+                if (msg.arg1 == FRAME_REPLACED && mShownBitmap != null && mShownBitmap != b)
+                    mShownBitmap.recycle();
+                mShownBitmap = b;
+                
+                // Frames keep arriving during the live preview, so only
+                // announce slides updated by a command
+                if (!mLivePreview)
+                    Toast.makeText(getApplicationContext(), R.string.slide_updated, Toast.LENGTH_SHORT).show();
                 break;
             case CONNECTION_LOST:
             	mTitle.setText(R.string.title_not_connected);
             	finish();
             	break;
             case IMAGE_TRANSFER_START:
-            	Toast.makeText(getApplicationContext(), R.string.updating_slide, Toast.LENGTH_SHORT).show();
+            	if (!mLivePreview)
+            	    Toast.makeText(getApplicationContext(), R.string.updating_slide, Toast.LENGTH_SHORT).show();
             	break;
+            case RELEASED_IMAGE:
+                // BluetoothService gave up a screenshot it was not sure had
+                // stopped being shown. The screenshot sent after it is
+                // handled first, so it is normally no longer shown here.
+                Bitmap released = (Bitmap) msg.obj;
+                if (released != mShownBitmap)
+                    released.recycle();
+                break;
             }
         }
     };    
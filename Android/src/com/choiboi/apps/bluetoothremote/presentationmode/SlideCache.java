@@ -0,0 +1,212 @@
+package com.choiboi.apps.bluetoothremote.presentationmode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/*
+ * Slides received from the server, keyed by slide hash, so going back to a
+ * slide shows it right away instead of waiting for it to be sent again.
+ *
+ * Recent slides are kept as bitmaps in memory up to a share of the heap,
+ * evicting the least recently used. Every slide is also written to a cache
+ * directory as a PNG in the background, evicting the oldest files beyond
+ * DISK_BUDGET bytes, so slides dropped from memory can still be read back,
+ * including after the PresentationMode Activity is restarted. The directory is
+ * emptied when the cache is created along with its BluetoothService, and
+ * close() stops the disk writer when the service is stopped.
+ *
+ * get() and put() are only called on the DecodeThread of BluetoothService.
+ */
+public class SlideCache {
+
+    // Debugging
+    private static final String TAG = "SlideCache";
+
+    // Share of the heap the slides in memory may take
+    private static final int HEAP_DIVISOR = 8;
+
+    // Most bytes of slides kept on disk
+    private static final long DISK_BUDGET = 32L * 1024 * 1024;
+
+    private static final String SUFFIX = ".png";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Member fields
+    private final File mDirectory;
+    private final long mMemoryBudget;
+    private long mMemoryBytes;
+    private final Map<Long, Bitmap> mSlides = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final ExecutorService mDiskWriter = Executors.newSingleThreadExecutor();
+
+    public SlideCache(File directory) {
+        mDirectory = directory;
+        mMemoryBudget = Runtime.getRuntime().maxMemory() / HEAP_DIVISOR;
+
+        // Start each run of the application with an empty disk tier
+        mDiskWriter.execute(new Runnable() {
+            public void run() {
+                if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+                    Log.e(TAG, "Cannot create " + mDirectory);
+                File[] files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files)
+                        file.delete();
+                }
+            }
+        });
+    }
+
+    /*
+     * Return the slide with the given hash, or null if it is neither in memory
+     * nor on disk. The bitmap is owned by the cache and must not be changed or
+     * recycled.
+     *
+     * @param config config to decode a slide read from disk with
+     */
+    public Bitmap get(long hash, Bitmap.Config config) {
+        Bitmap slide = mSlides.get(hash);
+        if (slide != null)
+            return slide;
+
+        // Files are renamed into place once written, so one that exists is
+        // complete
+        File file = fileFor(hash, SUFFIX);
+        if (!file.exists())
+            return null;
+
+        mOptions.inPreferredConfig = config;
+        slide = BitmapFactory.decodeFile(file.getPath(), mOptions);
+        if (slide == null) {
+            Log.e(TAG, "Could not read " + file);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        addToMemory(hash, slide);
+        return slide;
+    }
+
+    /*
+     * Cache a copy of the slide, unless it is cached already.
+     *
+     * @param frame screenshot holding the slide, which may change afterwards
+     */
+    public void put(long hash, Bitmap frame) {
+        if (mSlides.containsKey(hash))
+            return;
+
+        final Bitmap slide = frame.copy(frame.getConfig(), false);
+        if (slide == null)
+            return;
+        addToMemory(hash, slide);
+
+        // The copy is never changed, so it can be written while it is shown
+        // or even after it has been evicted from memory
+        final File file = fileFor(hash, SUFFIX);
+        final File temp = fileFor(hash, TEMP_SUFFIX);
+        try {
+            mDiskWriter.execute(new Runnable() {
+                public void run() {
+                    writeFile(slide, temp, file);
+                    trimDisk();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed while the DecodeThread was still finishing a frame, so
+            // the slide is only kept in memory
+        }
+    }
+
+    /*
+     * Stop the disk writer once the files already queued are written. Slides
+     * put afterwards are only kept in memory.
+     */
+    public void close() {
+        mDiskWriter.shutdown();
+    }
+
+    private void addToMemory(long hash, Bitmap slide) {
+        mSlides.put(hash, slide);
+        mMemoryBytes += sizeOf(slide);
+
+        // Evicted slides are not recycled, as the disk writer may still need
+        // them, and are left to the garbage collector. The newest slide is
+        // always kept, even if it is larger than the budget by itself.
+        Iterator<Bitmap> eldest = mSlides.values().iterator();
+        while (mMemoryBytes > mMemoryBudget && mSlides.size() > 1) {
+            mMemoryBytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private void writeFile(Bitmap slide, File temp, File file) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            if (!slide.compress(Bitmap.CompressFormat.PNG, 100, out))
+                throw new IOException("Could not compress slide");
+            out.close();
+            out = null;
+            if (!temp.renameTo(file))
+                throw new IOException("Could not rename " + temp);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+        }
+    }
+
+    /*
+     * Delete the least recently used files until the rest fit in DISK_BUDGET.
+     */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+
+        long bytes = 0;
+        for (File file : files)
+            bytes += file.length();
+        if (bytes <= DISK_BUDGET)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < files.length && bytes > DISK_BUDGET; i++) {
+            bytes -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    private File fileFor(long hash, String suffix) {
+        return new File(mDirectory, Long.toHexString(hash) + suffix);
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -5,6 +5,7 @@ import android.view.GestureDetector.OnGestureListener;
 import android.view.MotionEvent;
 
 import com.choiboi.apps.bluetoothremote.BluetoothService;
+import com.choiboi.apps.bluetoothremote.protocol.Protocol;
 
 public class SwipeGestureDetector implements OnGestureListener {
     
@@ -19,13 +20,6 @@ public class SwipeGestureDetector implements OnGestureListener {
     private static final int SWIPE_MIN_DISTANCE = 120;
     private static final int SWIPE_MAX_OFF_PATH = 250;
     
-    // Constants that indicate command to computer
-    private static final String CMD = "CMD";
-    private static final String LEFT = "LEFT";
-    private static final String DOWN = "DOWN";
-    private static final String UP = "UP";
-    private static final String RIGHT = "RIGHT";
-    
     public SwipeGestureDetector(BluetoothService btService, String deviceName) {
         Log.i(TAG, "++ SwipeGestureDetector ++");
         
@@ -37,20 +31,14 @@ public class SwipeGestureDetector implements OnGestureListener {
     public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
         Log.i(TAG, "++ onFling ++");
         
-        String command = CMD + ":" + mLocalDeviceName + ":";
-
         if (rightLeftSwipe(e1, e2)) {
-            command += RIGHT;
-            mBtService.write(command.getBytes());
+            mBtService.sendCommand(Protocol.CMD_RIGHT, Protocol.PROGRAM_NONE);
         } else if (leftRightSwipe(e1, e2)) {
-            command += LEFT;
-            mBtService.write(command.getBytes());
+            mBtService.sendCommand(Protocol.CMD_LEFT, Protocol.PROGRAM_NONE);
         } else if (upDownSwipe(e1, e2)) {
-            command += UP;
-            mBtService.write(command.getBytes());
+            mBtService.sendCommand(Protocol.CMD_UP, Protocol.PROGRAM_NONE);
         } else if (downUpSwipe(e1, e2)) {
-            command += DOWN;
-            mBtService.write(command.getBytes());
+            mBtService.sendCommand(Protocol.CMD_DOWN, Protocol.PROGRAM_NONE);
         }
 
         return false;
@@ -82,8 +70,7 @@ public class SwipeGestureDetector implements OnGestureListener {
     public boolean onSingleTapUp(MotionEvent arg0) {
         Log.i(TAG, "++ onSingleTapUp ++");
         
-        String command = CMD + ":" + mLocalDeviceName + ":" + RIGHT;
-        mBtService.write(command.getBytes());
+        mBtService.sendCommand(Protocol.CMD_RIGHT, Protocol.PROGRAM_NONE);
 
         return false;
     }
@@ -0,0 +1,38 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+import java.io.IOException;
+
+/*
+ * Thrown by FrameDecoder when a chunk of a bulk frame fails its checksum or
+ * arrives out of order. The stream itself is still in step, so the reader
+ * asks for the frame to be sent again from getChunk() with TYPE_RESEND and
+ * carries on reading.
+ */
+public class FragmentDamagedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    // Member fields
+    private final int mSequence;
+    private final int mChunk;
+
+    public FragmentDamagedException(int sequence, int chunk) {
+        super("Chunk " + chunk + " of frame " + sequence + " damaged");
+        mSequence = sequence;
+        mChunk = chunk;
+    }
+
+    /*
+     * Return the sequence number of the damaged frame.
+     */
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /*
+     * Return the index of the first chunk to send again.
+     */
+    public int getChunk() {
+        return mChunk;
+    }
+}
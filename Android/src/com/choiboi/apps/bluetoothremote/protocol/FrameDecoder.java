@@ -0,0 +1,349 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/*
+ * Reads frames off a stream regardless of how the underlying transport splits
+ * or coalesces packets. The header and payload buffers are reused between
+ * frames, so decoding does not allocate unless a payload is larger than any
+ * seen before.
+ * 
+ * Fragments of a bulk frame are gathered in a buffer of their own, while the
+ * frames sent between them are returned as they arrive, and the bulk frame is
+ * returned once its last chunk has been read and checked.
+ */
+public class FrameDecoder {
+
+    // Member fields
+    private final InputStream mInputStream;
+    private final byte[] mHeader = new byte[Protocol.HEADER_LENGTH];
+    private byte[] mPayload;
+    private int mType;
+    private int mSequence;
+    private int mLength;
+    private byte[] mBulk = new byte[256];
+    private boolean mInBulkFrame;
+    private int mBulkType;
+    private int mBulkSequence;
+    private int mBulkLength;
+    private int mNextChunk;
+    private boolean mAwaitingResend;
+    private boolean mHasBulkFrame;
+    private int mLastBulkSequence;
+    private final byte[] mFragmentHeader = new byte[Protocol.FRAGMENT_HEADER_LENGTH];
+    private final CRC32 mChecksum = new CRC32();
+
+    // Read by the stall watchdog on another thread: the sequence number and
+    // next chunk of the bulk frame being gathered, packed as sequence << 32 |
+    // chunk, or -1, and when a fragment was last read
+    private volatile long mPendingChunk = -1;
+    private volatile long mLastFragmentNanos;
+
+    public FrameDecoder(InputStream in) {
+        mInputStream = new BufferedInputStream(in);
+        mPayload = new byte[256];
+    }
+
+    /*
+     * Go on from where another decoder stopped, on a new stream that resumes
+     * the same session. The bulk frame it was gathering is finished with the
+     * chunks sent again on this stream, and frames it already returned are
+     * skipped.
+     * 
+     * @param previous decoder of the lost stream, no longer read from
+     */
+    public FrameDecoder(InputStream in, FrameDecoder previous) {
+        this(in);
+        mBulk = previous.mBulk;
+        mInBulkFrame = previous.mInBulkFrame;
+        mBulkType = previous.mBulkType;
+        mBulkSequence = previous.mBulkSequence;
+        mBulkLength = previous.mBulkLength;
+        mNextChunk = previous.mNextChunk;
+        mHasBulkFrame = previous.mHasBulkFrame;
+        mLastBulkSequence = previous.mLastBulkSequence;
+        // Anything but the chunk asked for in TYPE_HELLO is skipped
+        mAwaitingResend = mInBulkFrame;
+        markFragmentRead();
+    }
+
+    /*
+     * Block until the next complete frame has been read. Returns false if the
+     * stream ended cleanly between two frames. Throws FragmentDamagedException
+     * if a chunk of a bulk frame is damaged, after which reading can go on.
+     */
+    public boolean readFrame() throws IOException {
+        while (true) {
+            if (!readFully(mHeader, 0, Protocol.HEADER_LENGTH, !mInBulkFrame))
+                return false;
+
+            if (mHeader[0] != Protocol.VERSION)
+                throw new IOException("Unsupported protocol version: " + mHeader[0]);
+
+            int type = mHeader[1] & 0xFF;
+            int sequence = readInt(mHeader, 2);
+            int length = readInt(mHeader, 6);
+            if (length < 0 || length > Protocol.MAX_PAYLOAD_LENGTH)
+                throw new IOException("Invalid payload length: " + length);
+
+            if ((type & Protocol.FLAG_FRAGMENT) == 0) {
+                // Read exactly the announced number of bytes, so a malformed
+                // payload can never run into the frame that follows it
+                mPayload = ensureCapacity(mPayload, length, 0);
+                readFully(mPayload, 0, length, false);
+                mType = type;
+                mSequence = sequence;
+                mLength = length;
+                return true;
+            }
+
+            try {
+                if (!readFragment(type & ~Protocol.FLAG_FRAGMENT, sequence, length))
+                    continue;
+
+                // Last chunk, so return the whole frame and gather the next
+                // one in the buffer that held the previous payload
+                byte[] payload = mPayload;
+                mPayload = mBulk;
+                mBulk = payload;
+                mType = mBulkType;
+                mSequence = mBulkSequence;
+                mLength = mBulkLength;
+                mInBulkFrame = false;
+                mLastBulkSequence = mBulkSequence;
+                mHasBulkFrame = true;
+                return true;
+            } finally {
+                markFragmentRead();
+            }
+        }
+    }
+
+    private void markFragmentRead() {
+        mPendingChunk = mInBulkFrame ? ((long) mBulkSequence << 32) | mNextChunk : -1;
+        mLastFragmentNanos = System.nanoTime();
+    }
+
+    /*
+     * Return the sequence number and next chunk of the bulk frame being
+     * gathered, packed as sequence << 32 | chunk, if no fragment has been read
+     * for the given time, otherwise -1. May be called from another thread.
+     */
+    public long getStalledChunk(long timeoutMs) {
+        long pending = mPendingChunk;
+        if (pending == -1 || System.nanoTime() - mLastFragmentNanos < timeoutMs * 1000000L)
+            return -1;
+        return pending;
+    }
+
+    /*
+     * Return the sequence number of the first bulk frame not yet read whole.
+     */
+    public int getResumeSequence() {
+        return mInBulkFrame ? mBulkSequence : mLastBulkSequence + 1;
+    }
+
+    /*
+     * Return the chunk of that frame to go on from.
+     */
+    public int getResumeChunk() {
+        return mInBulkFrame ? mNextChunk : 0;
+    }
+
+    /*
+     * Drop the bulk frame being gathered, as the server started a new session
+     * instead of resuming the one it belonged to.
+     */
+    public void dropBulkFrame() {
+        mInBulkFrame = false;
+        mAwaitingResend = false;
+        markFragmentRead();
+    }
+
+    /*
+     * Read one fragment into the bulk frame. Returns true if it completed the
+     * frame.
+     */
+    private boolean readFragment(int type, int sequence, int length) throws IOException {
+        if (length < Protocol.FRAGMENT_HEADER_LENGTH)
+            throw new IOException("Fragment too short: " + length);
+        readFully(mFragmentHeader, 0, Protocol.FRAGMENT_HEADER_LENGTH, false);
+        int chunk = readInt(mFragmentHeader, 0);
+        int total = readInt(mFragmentHeader, 4);
+        int checksum = readInt(mFragmentHeader, 8);
+        int chunkLength = length - Protocol.FRAGMENT_HEADER_LENGTH;
+        long start = (long) chunk * Protocol.FRAGMENT_LENGTH;
+        if (total < 0 || total > Protocol.MAX_PAYLOAD_LENGTH || chunk < 0 || chunkLength > Protocol.FRAGMENT_LENGTH
+                || start + chunkLength > total)
+            throw new IOException("Invalid fragment " + chunk + " of frame " + sequence);
+
+        if (mInBulkFrame) {
+            if (sequence != mBulkSequence || type != mBulkType || chunk != mNextChunk || total != mBulkLength) {
+                skipFully(chunkLength);
+                // Fragments already on their way when the resend was asked
+                // for are skipped until it arrives
+                if (mAwaitingResend)
+                    return false;
+                mAwaitingResend = true;
+                throw new FragmentDamagedException(mBulkSequence, mNextChunk);
+            }
+        } else {
+            // Frames sent after a damaged one are sent again in full, so skip
+            // any that were already returned
+            if (mHasBulkFrame && sequence - mLastBulkSequence <= 0) {
+                skipFully(chunkLength);
+                return false;
+            }
+            mInBulkFrame = true;
+            mBulkType = type;
+            mBulkSequence = sequence;
+            mBulkLength = total;
+            mNextChunk = 0;
+            mBulk = ensureCapacity(mBulk, total, 0);
+            if (chunk != 0) {
+                skipFully(chunkLength);
+                mAwaitingResend = true;
+                throw new FragmentDamagedException(sequence, 0);
+            }
+        }
+
+        readFully(mBulk, (int) start, chunkLength, false);
+        mChecksum.reset();
+        mChecksum.update(mBulk, (int) start, chunkLength);
+        if ((int) mChecksum.getValue() != checksum) {
+            mAwaitingResend = true;
+            throw new FragmentDamagedException(sequence, chunk);
+        }
+        mAwaitingResend = false;
+        mNextChunk++;
+        return start + chunkLength == total;
+    }
+
+    /*
+     * Return true if more bytes have already arrived, meaning the next call to
+     * readFrame() is unlikely to block for long.
+     */
+    public boolean hasBufferedInput() throws IOException {
+        return mInputStream.available() > 0;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /*
+     * Return the buffer holding the payload of the last frame. Only the first
+     * getLength() bytes are valid and the contents are overwritten by the next
+     * call to readFrame().
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /*
+     * Take the buffer holding the payload of the last frame, so it can be
+     * handed to another thread without copying it. The given buffer is used
+     * for the following frames instead, and grown if it is too small.
+     * 
+     * @param replacement buffer no longer used by the caller
+     */
+    public byte[] swapPayload(byte[] replacement) {
+        byte[] payload = mPayload;
+        mPayload = replacement;
+        return payload;
+    }
+
+    /*
+     * Return the payload byte at the given index as an unsigned value, or 0 if
+     * the payload is too short.
+     */
+    public int getPayloadByte(int index) {
+        return index < mLength ? mPayload[index] & 0xFF : 0;
+    }
+
+    /*
+     * Return the big-endian int starting at the given payload offset.
+     */
+    public int getPayloadInt(int offset) throws IOException {
+        if (offset < 0 || offset + 4 > mLength)
+            throw new IOException("Payload too short for int at " + offset);
+        return readInt(mPayload, offset);
+    }
+
+    /*
+     * Return the big-endian long starting at the given payload offset.
+     */
+    public long getPayloadLong(int offset) throws IOException {
+        return ((long) getPayloadInt(offset) << 32) | (getPayloadInt(offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /*
+     * Return the payload from the given offset on decoded as a UTF-8 string.
+     */
+    public String getPayloadString(int offset) throws IOException {
+        if (offset < 0 || offset > mLength)
+            throw new IOException("Payload too short for string at " + offset);
+        return new String(mPayload, offset, mLength - offset, "UTF-8");
+    }
+
+    private boolean readFully(byte[] buffer, int offset, int length, boolean eofAllowed) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int bytes = mInputStream.read(buffer, offset, end - offset);
+            if (bytes == -1) {
+                if (offset == end - length && eofAllowed)
+                    return false;
+                throw new EOFException("Stream ended in the middle of a frame");
+            }
+            offset += bytes;
+        }
+        return true;
+    }
+
+    private void skipFully(int length) throws IOException {
+        while (length > 0) {
+            long skipped = mInputStream.skip(length);
+            if (skipped <= 0) {
+                if (mInputStream.read() == -1)
+                    throw new EOFException("Stream ended in the middle of a frame");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    /*
+     * Return the buffer if it can hold the given number of bytes, otherwise a
+     * larger one starting with the same bytes.
+     * 
+     * @param keep number of bytes at the start of the buffer to keep
+     */
+    private static byte[] ensureCapacity(byte[] buffer, int length, int keep) {
+        if (length <= buffer.length)
+            return buffer;
+        byte[] grown = new byte[Math.min(Math.max(length, buffer.length * 2), Protocol.MAX_PAYLOAD_LENGTH)];
+        System.arraycopy(buffer, 0, grown, 0, keep);
+        return grown;
+    }
+
+    public static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    public static long readLong(byte[] buffer, int offset) {
+        return ((long) readInt(buffer, offset) << 32) | (readInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+}
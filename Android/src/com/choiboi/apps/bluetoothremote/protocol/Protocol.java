@@ -0,0 +1,195 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+/*
+ * Constants describing the binary frame format shared between the server and
+ * the mobile device. Every message is sent as a frame with the following
+ * header followed by the payload:
+ * 
+ *   byte 0      protocol version
+ *   byte 1      frame type
+ *   bytes 2-5   sequence number (big-endian)
+ *   bytes 6-9   payload length (big-endian)
+ * 
+ * The server keeps an identical copy of this class, so any change here must be
+ * made on both sides and VERSION bumped.
+ */
+public final class Protocol {
+
+    // Frame header layout
+    public static final int VERSION = 14;
+    public static final int HEADER_LENGTH = 10;
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    // Screenshots are sent on a bulk channel as a run of fragments, each with
+    // the type and sequence number of the whole frame and FLAG_FRAGMENT set in
+    // the type. A fragment carries the chunk index, the payload length of the
+    // whole frame and the CRC32 of the chunk as ints, then the chunk, which is
+    // the part of the payload starting at chunk index * FRAGMENT_LENGTH. Other
+    // frames go out between fragments, ahead of the rest of the screenshot,
+    // so commands and acknowledgements never wait for more than one fragment.
+    //
+    // A chunk that fails its checksum or arrives out of order is answered with
+    // TYPE_RESEND. The server then sends that frame again from the chunk
+    // asked for, followed in full by every frame sent after it, and the device
+    // skips every other fragment until then. The server keeps every frame
+    // until it is acknowledged with TYPE_IMAGE_ACK. The device also asks for
+    // the next chunk again if none has arrived for a while.
+    //
+    // Frames are numbered per session rather than per connection. TYPE_HELLO
+    // names the session the decoding state of the device belongs to, and the
+    // frame and chunk it stopped at. If the connection was lost, the server
+    // holds the frames of that session for a while, and on a new connection
+    // goes on from that chunk and answers TYPE_SESSION with [1]. Otherwise it
+    // starts a new session numbered from that frame on and answers [0], and
+    // the device drops the frame it was gathering.
+    public static final int FRAGMENT_LENGTH = 2048;
+    public static final int FRAGMENT_HEADER_LENGTH = 12;
+    public static final int FLAG_FRAGMENT = 0x80;
+
+    // Frame types sent from the mobile device
+    public static final int TYPE_HELLO = 1;             // Payload is [session id] as a long, [sequence number,
+                                                        // chunk] to go on from as ints, then the device name
+                                                        // in UTF-8
+    public static final int TYPE_COMMAND = 2;           // Payload is [command, program, repeat count]
+    public static final int TYPE_IMAGE_ACK = 4;         // Sequence number of the screenshot received, payload
+                                                        // is the time taken to decode it in ms as an int
+    public static final int TYPE_DISPLAY_INFO = 5;      // Payload is [width, height, density dpi] as ints
+    public static final int TYPE_STREAM = 6;            // Payload is [1] to start the live preview, [0] to stop
+    public static final int TYPE_SELECT_DISPLAY = 7;    // Payload is the index of the display to capture as an int
+    public static final int TYPE_SLIDE_MISS = 8;        // Sequence number of a TYPE_IMAGE_CACHED the device could
+                                                        // not show, payload is the slide hash as a long
+    public static final int TYPE_RESEND = 9;            // Sequence number of a damaged frame, payload is the
+                                                        // index of the first chunk to send again as an int
+
+    // Frame types sent from the server
+    public static final int TYPE_COMMAND_ACK = 64;      // Highest command sequence number processed
+    public static final int TYPE_IMAGE = 65;            // Payload is a screenshot, see below
+    public static final int TYPE_IMAGE_UNCHANGED = 66;  // Screen is identical to the last screenshot
+    public static final int TYPE_DISPLAY_LIST = 67;     // Displays of the server, see below
+    public static final int TYPE_IMAGE_CACHED = 68;     // Screen shows a slide sent before, see below
+    public static final int TYPE_SESSION = 69;          // Payload is [1] if the session named in TYPE_HELLO
+                                                        // goes on, [0] if a new one starts
+
+    // A TYPE_IMAGE payload starts with the frame width, the frame height and
+    // the number of regions, each as an int, and the slide hash as a long.
+    // Every region then follows as its x, y, width and height and codec as
+    // ints, its content hash as a long, its encoded length as an int, and the
+    // encoded pixels. Regions are patched into the previous frame.
+    public static final int IMAGE_HEADER_LENGTH = 20;
+    public static final int REGION_HEADER_LENGTH = 32;
+
+    // Frames taken after a command are slides. The device keeps the slides it
+    // received in its slide cache under their slide hash, the content hash of
+    // the whole frame, and when the screen returns to one of them the server
+    // sends a TYPE_IMAGE_CACHED with the frame width and height as ints and
+    // the slide hash as a long instead of the tiles. If the device no longer
+    // has it, it answers with TYPE_SLIDE_MISS and the server resends the whole
+    // frame. Frames of the live preview have a slide hash of NO_SLIDE.
+    public static final int IMAGE_CACHED_LENGTH = 16;
+    public static final long NO_SLIDE = 0;
+
+    // Codecs a region may be encoded with
+    public static final int CODEC_PNG = 1;
+    public static final int CODEC_JPEG = 2;
+    public static final int CODEC_RLE = 3;              // See RleCodec on the server
+    public static final int CODEC_TILE_REF = 4;         // No pixels, copy the cached tile with this hash
+
+    // Regions are tiles of the screen cut on a fixed grid. The device caches
+    // the pixels of the last TILE_CACHE_CAPACITY distinct tiles it received,
+    // evicting the least recently used, and the server keeps an identical
+    // model of that cache so it can send a reference instead of pixels.
+    public static final int TILE_SIZE = 64;
+    public static final int TILE_CACHE_CAPACITY = 256;
+
+    // Commands are numbered from 1 on each connection and acknowledged
+    // cumulatively. The device keeps at most COMMAND_WINDOW commands
+    // unacknowledged, and the server acknowledges at least every
+    // COMMAND_ACK_INTERVAL commands or whenever it runs out of input.
+    public static final int COMMAND_WINDOW = 8;
+    public static final int COMMAND_ACK_INTERVAL = COMMAND_WINDOW / 2;
+
+    // Commands carried in the first byte of a TYPE_COMMAND payload
+    public static final int CMD_APP_STARTED = 1;
+    public static final int CMD_LEFT = 2;
+    public static final int CMD_RIGHT = 3;
+    public static final int CMD_UP = 4;
+    public static final int CMD_DOWN = 5;
+    public static final int CMD_GO_FULLSCREEN = 6;
+    public static final int CMD_EXIT_FULLSCREEN = 7;
+    public static final int CMD_EXIT = 8;
+
+    // Presentation programs carried in the second byte of a TYPE_COMMAND payload
+    public static final int PROGRAM_NONE = 0;
+    public static final int PROGRAM_BROWSER = 1;
+    public static final int PROGRAM_MICRO_PPT = 2;
+    public static final int PROGRAM_ADOBE_PDF = 3;
+
+    // Length of a TYPE_HELLO payload before the device name
+    public static final int HELLO_HEADER_LENGTH = 16;
+
+    // Length of a TYPE_SESSION payload
+    public static final int SESSION_LENGTH = 1;
+
+    // Length of a TYPE_COMMAND payload
+    public static final int COMMAND_LENGTH = 3;
+
+    // The device merges a burst of the same arrow command into one command
+    // carrying how many times it is repeated, which the server injects back
+    // to back before taking a single screenshot
+    public static final int MAX_COMMAND_REPEAT = 255;
+
+    // Length of a TYPE_DISPLAY_INFO payload
+    public static final int DISPLAY_INFO_LENGTH = 12;
+
+    // Length of a TYPE_IMAGE_ACK payload
+    public static final int IMAGE_ACK_LENGTH = 4;
+
+    // Length of a TYPE_STREAM payload
+    public static final int STREAM_LENGTH = 1;
+
+    // Length of a TYPE_SELECT_DISPLAY payload
+    public static final int SELECT_DISPLAY_LENGTH = 4;
+
+    // Length of a TYPE_SLIDE_MISS payload
+    public static final int SLIDE_MISS_LENGTH = 8;
+
+    // Length of a TYPE_RESEND payload
+    public static final int RESEND_LENGTH = 4;
+
+    // A TYPE_DISPLAY_LIST payload starts with the number of displays and the
+    // index of the one captured, or -1 for a custom region, each as an int.
+    // Every display then follows as its x, y, width and height as ints.
+    public static final int DISPLAY_LIST_HEADER_LENGTH = 8;
+    public static final int DISPLAY_ENTRY_LENGTH = 16;
+
+    private Protocol() {
+    }
+
+    /*
+     * Return a readable name of the command for logging.
+     * 
+     * @param command one of the CMD_ constants
+     */
+    public static String commandName(int command) {
+        switch (command) {
+        case CMD_APP_STARTED:
+            return "APP_STARTED";
+        case CMD_LEFT:
+            return "LEFT";
+        case CMD_RIGHT:
+            return "RIGHT";
+        case CMD_UP:
+            return "UP";
+        case CMD_DOWN:
+            return "DOWN";
+        case CMD_GO_FULLSCREEN:
+            return "GO_FULLSCREEN";
+        case CMD_EXIT_FULLSCREEN:
+            return "EXIT_FULLSCREEN";
+        case CMD_EXIT:
+            return "EXIT";
+        default:
+            return "UNKNOWN(" + command + ")";
+        }
+    }
+}
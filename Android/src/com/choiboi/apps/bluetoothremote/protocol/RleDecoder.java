@@ -0,0 +1,57 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+import java.io.IOException;
+
+/*
+ * Decodes regions sent with Protocol.CODEC_RLE. Each run starts with a control
+ * byte: 0x80 | (n - 1) means the next pixel is repeated n times, and n - 1
+ * means n literal pixels follow. Every pixel is 3 bytes of R, G and B. The
+ * pixel buffer is reused between regions.
+ */
+public class RleDecoder {
+
+    // Member fields
+    private int[] mPixels = new int[0];
+
+    /*
+     * Decode a region into opaque ARGB pixels. The returned array is reused by
+     * the next call and may be longer than width * height.
+     */
+    public int[] decode(byte[] data, int offset, int length, int width, int height) throws IOException {
+        int count = width * height;
+        if (mPixels.length < count)
+            mPixels = new int[count];
+
+        int end = offset + length;
+        int pos = offset;
+        int pixel = 0;
+        while (pixel < count) {
+            if (pos >= end)
+                throw new IOException("RLE region ended early");
+
+            int control = data[pos++] & 0xFF;
+            int run = (control & 0x7F) + 1;
+            if (pixel + run > count)
+                throw new IOException("RLE run overflows region");
+
+            if ((control & 0x80) != 0) {
+                int color = readPixel(data, pos, end);
+                pos += 3;
+                for (int i = 0; i < run; i++)
+                    mPixels[pixel++] = color;
+            } else {
+                for (int i = 0; i < run; i++) {
+                    mPixels[pixel++] = readPixel(data, pos, end);
+                    pos += 3;
+                }
+            }
+        }
+        return mPixels;
+    }
+
+    private static int readPixel(byte[] data, int pos, int end) throws IOException {
+        if (pos + 3 > end)
+            throw new IOException("RLE region ended early");
+        return 0xFF000000 | ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+    }
+}
@@ -0,0 +1,61 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Pixels of the last Protocol.TILE_CACHE_CAPACITY distinct tiles received,
+ * keyed by content hash and evicted least recently used first. The server
+ * keeps a model of this cache, so put() must be called for every tile received
+ * with pixels and get() for every tile reference, in the order they arrive.
+ * Arrays of evicted tiles are recycled for new ones.
+ */
+public class TileCache {
+
+    private static final int TILE_PIXELS = Protocol.TILE_SIZE * Protocol.TILE_SIZE;
+
+    // Member fields
+    private final List<int[]> mFreeArrays = new ArrayList<int[]>();
+    private final Map<Long, int[]> mTiles = new LinkedHashMap<Long, int[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+            if (size() > Protocol.TILE_CACHE_CAPACITY) {
+                mFreeArrays.add(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /*
+     * Return the pixels of the tile, stored with a stride of the tile width,
+     * or null if it is not cached.
+     */
+    public int[] get(long hash) {
+        return mTiles.get(hash);
+    }
+
+    /*
+     * Return an array to copy the pixels of a new tile into before passing it
+     * to put().
+     */
+    public int[] obtainArray() {
+        return mFreeArrays.isEmpty() ? new int[TILE_PIXELS] : mFreeArrays.remove(mFreeArrays.size() - 1);
+    }
+
+    /*
+     * Cache the pixels of a tile received from the server.
+     */
+    public void put(long hash, int[] pixels) {
+        int[] previous = mTiles.put(hash, pixels);
+        if (previous != null && previous != pixels)
+            mFreeArrays.add(previous);
+    }
+
+    public void clear() {
+        mFreeArrays.addAll(mTiles.values());
+        mTiles.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package com.choiboi.apps.bluetoothremote.protocol;
+
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+/*
+ * Decodes the pixels of one tile of a screenshot into an int array, whatever
+ * codec the server encoded it with. PNG and JPEG tiles are decoded by
+ * BitmapFactory into a bitmap that is reused for every tile of the same size
+ * on Android 3.0 and later, where inBitmap is available, and with a reused
+ * temporary buffer on every version, so decoding a frame does not leave a
+ * bitmap per tile for the garbage collector.
+ */
+public class TileDecoder {
+
+    // Debugging
+    private static final String TAG = "TileDecoder";
+
+    // Member fields
+    private final RleDecoder mRleDecoder = new RleDecoder();
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final boolean mCanReuseBitmaps = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    private Bitmap mTileBitmap;
+    private Bitmap mEdgeBitmap;
+
+    public TileDecoder() {
+        mOptions.inTempStorage = new byte[16 * 1024];
+        mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if (mCanReuseBitmaps)
+            mOptions.inMutable = true;
+    }
+
+    /*
+     * Decode a tile into the array, stored with a stride of the tile width.
+     * Returns false if BitmapFactory could not decode the tile, leaving the
+     * array as it was. Malformed RLE data throws, as the payload is corrupt.
+     *
+     * @param codec one of the Protocol.CODEC_ constants other than
+     * CODEC_TILE_REF
+     */
+    public boolean decode(int codec, byte[] data, int offset, int length, int width, int height, int[] pixels)
+            throws IOException {
+        if (codec == Protocol.CODEC_RLE) {
+            int[] decoded = mRleDecoder.decode(data, offset, length, width, height);
+            System.arraycopy(decoded, 0, pixels, 0, width * height);
+            return true;
+        }
+
+        // PNG and JPEG are both handled by BitmapFactory
+        Bitmap bitmap = decodeBitmap(data, offset, length, width, height);
+        if (bitmap == null)
+            return false;
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (!mCanReuseBitmaps)
+            bitmap.recycle();
+        return true;
+    }
+
+    /*
+     * Free the pooled bitmaps.
+     */
+    public void release() {
+        if (mTileBitmap != null)
+            mTileBitmap.recycle();
+        if (mEdgeBitmap != null)
+            mEdgeBitmap.recycle();
+        mTileBitmap = null;
+        mEdgeBitmap = null;
+    }
+
+    private Bitmap decodeBitmap(byte[] data, int offset, int length, int width, int height) {
+        if (!mCanReuseBitmaps)
+            return BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+
+        // Before Android 4.4 inBitmap must have exactly the size decoded, so
+        // keep one bitmap for full tiles and one for the last edge size seen
+        boolean fullTile = width == Protocol.TILE_SIZE && height == Protocol.TILE_SIZE;
+        Bitmap reuse = fullTile ? mTileBitmap : mEdgeBitmap;
+        if (reuse != null && (reuse.getWidth() != width || reuse.getHeight() != height)) {
+            reuse.recycle();
+            reuse = null;
+        }
+
+        mOptions.inBitmap = reuse;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused to reuse the bitmap, so decode into a new one
+            Log.w(TAG, "Cannot reuse tile bitmap", e);
+            mOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, offset, length, mOptions);
+        }
+        mOptions.inBitmap = null;
+
+        if (fullTile)
+            mTileBitmap = bitmap;
+        else
+            mEdgeBitmap = bitmap;
+        return bitmap;
+    }
+}
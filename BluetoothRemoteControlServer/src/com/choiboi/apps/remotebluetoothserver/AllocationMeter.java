@@ -0,0 +1,97 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ * Measures the memory allocated by one pipeline stage per frame, using the
+ * per thread allocation counter of HotSpot. Each stage runs on its own
+ * thread, so begin() and end() are called on that thread around the work for
+ * one frame. On virtual machines without the counter nothing is measured, and
+ * the HotSpot interface is only used once it is known to be there.
+ */
+class AllocationMeter {
+
+    // Null unless the bean has the per thread allocation counter
+    private static final ThreadMXBean THREAD_BEAN = findThreadBean();
+
+    // Member fields
+    private final String mName;
+    private long mStartBytes;
+    private long mTotalBytes;
+    private long mMaxBytes;
+    private int mFrames;
+
+    AllocationMeter(String name) {
+        mName = name;
+    }
+
+    /*
+     * Start measuring the work for one frame on the calling thread.
+     */
+    void begin() {
+        if (THREAD_BEAN != null)
+            mStartBytes = getAllocatedBytes();
+    }
+
+    /*
+     * Stop measuring, on the same thread that called begin().
+     */
+    synchronized void end() {
+        if (THREAD_BEAN == null)
+            return;
+
+        long bytes = getAllocatedBytes() - mStartBytes;
+        mTotalBytes += bytes;
+        if (bytes > mMaxBytes)
+            mMaxBytes = bytes;
+        mFrames++;
+    }
+
+    synchronized int getFrames() {
+        return mFrames;
+    }
+
+    /*
+     * Return the average number of bytes allocated per frame.
+     */
+    synchronized long getAverageBytes() {
+        return mFrames == 0 ? 0 : mTotalBytes / mFrames;
+    }
+
+    synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " " + getAverageBytes() / 1024 + "KB/frame (max " + mMaxBytes / 1024 + "KB)";
+    }
+
+    /*
+     * Return the bytes allocated so far by the calling thread. Only called
+     * once findThreadBean() found the counter.
+     */
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) THREAD_BEAN).getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+    }
+
+    private static ThreadMXBean findThreadBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+                if (threadBean.isThreadAllocatedMemorySupported()) {
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                    return bean;
+                }
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot virtual machine
+        } catch (UnsupportedOperationException e) {
+            // Counter not available
+        }
+        return null;
+    }
+}
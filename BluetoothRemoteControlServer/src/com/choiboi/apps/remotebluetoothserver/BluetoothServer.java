@@ -1,24 +1,56 @@
 package com.choiboi.apps.remotebluetoothserver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.bluetooth.BluetoothStateException;
-import javax.bluetooth.DiscoveryAgent;
-import javax.bluetooth.LocalDevice;
-import javax.bluetooth.UUID;
-
-import javax.microedition.io.Connector;
-import javax.microedition.io.StreamConnection;
-import javax.microedition.io.StreamConnectionNotifier;
+import com.choiboi.apps.remotebluetoothserver.transport.BluetoothTransport;
+import com.choiboi.apps.remotebluetoothserver.transport.TcpTransport;
+import com.choiboi.apps.remotebluetoothserver.transport.Transport;
+import com.choiboi.apps.remotebluetoothserver.transport.TransportConnection;
 
 public class BluetoothServer implements Runnable {
 
-    private static final String WAITING_FOR_CONNECTION = "WAITING FOR BLUETOOTH CONNECTION.................";
-    private static final String BLUETOOTH_EXCEPTION = "Bluetooth on this device cannot be changed!!";
-    private static final String LOCAL_DEVICE_NAME = "Name of this Device: ";
-    private static final String LOCAL_DEVICE_ADDRESS = "Bluetooth Address of this Device: ";
-    
-    private static final String _UUID = "C46C11A93E424F64AB1EFC892E87B9DE"; // C46C11A9-3E42-4F64-AB1E-FC892E87B9DE
+    private static final String WAITING_FOR_CONNECTION = "WAITING FOR CONNECTION ON ";
+    private static final String TOO_MANY_SESSIONS = "Too many connected devices, rejecting connection";
+
+    // Limits on the sessions served at the same time. A session runs on five
+    // threads, its session thread and the four stages of its FramePipeline,
+    // so this bounds those threads at five times MAX_SESSIONS. Tiles are
+    // encoded on a pool shared by every session, and sessions held for a
+    // device to reconnect keep none.
+    private static final int MAX_SESSIONS = Integer.getInteger("bluetoothremote.maxSessions", 8);
+    private static final long SESSION_THREAD_STACK_SIZE = 256 * 1024;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    // Command line arguments
+    private static final String ARG_TCP = "tcp";
+
+    // Member fields
+    private final Transport mTransport;
+    private final ThreadPoolExecutor mSessionPool;
+    private final Set<ProcessInputConnection> mSessions;
+    private volatile boolean mShuttingDown;
+
+    public BluetoothServer(Transport transport) {
+        mTransport = transport;
+        mSessions = Collections.newSetFromMap(new ConcurrentHashMap<ProcessInputConnection, Boolean>());
+
+        // Session threads are created on demand up to MAX_SESSIONS and retired
+        // after a minute of idleness. A SynchronousQueue means a connection is
+        // rejected rather than queued once every thread is busy.
+        mSessionPool = new ThreadPoolExecutor(0, MAX_SESSIONS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new SessionThreadFactory());
+    }
 
     @Override
     public void run() {
@@ -26,28 +58,9 @@ public class BluetoothServer implements Runnable {
     }
 
     private void waitForConnection() {
-        LocalDevice localDevice = null;
-
-        StreamConnectionNotifier streamConnNotifier = null;
-        StreamConnection connection = null;
-
-        // Device setup to listen for Bluetooth connection
+        // Device setup to listen for connections
         try {
-            // Set local Bluetooth to be generally discoverable.
-            localDevice = LocalDevice.getLocalDevice();
-            localDevice.setDiscoverable(DiscoveryAgent.GIAC);
-            System.out.println(LOCAL_DEVICE_NAME + localDevice.getFriendlyName());
-            System.out.println(LOCAL_DEVICE_ADDRESS + localDevice.getBluetoothAddress());
-
-            // Create UUID for SPP and service URL
-            UUID uuid = new UUID(_UUID, false);
-            String connectionURL = "btspp://localhost:" + uuid + ";name=BluetoothRemoteApp";
-
-            // Open server URL
-            streamConnNotifier = (StreamConnectionNotifier) Connector.open(connectionURL);
-        } catch (BluetoothStateException e) {
-            System.out.println(BLUETOOTH_EXCEPTION);
-            e.printStackTrace();
+            mTransport.open();
         } catch (IOException e) {
             e.printStackTrace();
             return;
@@ -57,16 +70,14 @@ public class BluetoothServer implements Runnable {
         }
 
         // Wait for client connection
-        while (true) {
+        while (!mShuttingDown) {
             try {
-                System.out.println("\n" + WAITING_FOR_CONNECTION);
-                connection = streamConnNotifier.acceptAndOpen();
-                
-                // Start thread to process input commands
-                Thread processInputConnThread = new Thread(new ProcessInputConnection(connection));
-                processInputConnThread.start();
+                System.out.println("\n" + WAITING_FOR_CONNECTION + mTransport.getDescription() + ".................");
+                TransportConnection connection = mTransport.accept();
+                startSession(connection);
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!mShuttingDown)
+                    e.printStackTrace();
                 return;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -75,12 +86,115 @@ public class BluetoothServer implements Runnable {
         }
     }
 
+    /*
+     * Hand the connection to a pooled session thread, or close it right away if
+     * the maximum number of sessions are already running.
+     * 
+     * @param connection newly accepted connection
+     */
+    private void startSession(TransportConnection connection) {
+        final ProcessInputConnection session = new ProcessInputConnection(connection);
+        mSessions.add(session);
+
+        try {
+            mSessionPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.run();
+                    } finally {
+                        mSessions.remove(session);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            System.out.println(TOO_MANY_SESSIONS);
+            mSessions.remove(session);
+            session.close();
+        }
+    }
+
+    /*
+     * Stop accepting connections, close every connected session and wait a
+     * short while for their threads to finish.
+     */
+    public void shutdown() {
+        if (mShuttingDown)
+            return;
+        mShuttingDown = true;
+
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        List<ProcessInputConnection> sessions = new ArrayList<ProcessInputConnection>(mSessions);
+        for (ProcessInputConnection session : sessions)
+            session.close();
+
+        mSessionPool.shutdown();
+        try {
+            if (!mSessionPool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                mSessionPool.shutdownNow();
+        } catch (InterruptedException e) {
+            mSessionPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Return the number of sessions currently connected.
+     */
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /*
+     * Pick the transport named on the command line. With no arguments the
+     * server listens over Bluetooth; "tcp [port]" listens over TCP instead.
+     * 
+     * @param args command line arguments
+     */
+    private static Transport createTransport(String[] args) {
+        if (args.length > 0 && ARG_TCP.equalsIgnoreCase(args[0])) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : TcpTransport.DEFAULT_PORT;
+            return new TcpTransport(port);
+        }
+        return new BluetoothTransport();
+    }
+
     /*
      * @param args
      */
     public static void main(String[] args) {
+        final BluetoothServer server = new BluetoothServer(createTransport(args));
+
+        // Close connections cleanly when the JVM is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread("ShutdownHook") {
+            @Override
+            public void run() {
+                server.shutdown();
+            }
+        });
+
         // Initiates the server and waits for a connection from the client
-        Thread serverStartThread = new Thread(new BluetoothServer());
+        Thread serverStartThread = new Thread(server, "Acceptor");
         serverStartThread.start();
     }
+
+    /*
+     * Names session threads and gives them a small fixed stack so memory use
+     * stays predictable with many devices connected.
+     */
+    private static class SessionThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(null, r, "Session-" + mCount.incrementAndGet(), SESSION_THREAD_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
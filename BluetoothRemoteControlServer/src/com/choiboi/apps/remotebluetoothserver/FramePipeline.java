@@ -0,0 +1,680 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.choiboi.apps.remotebluetoothserver.codec.TileEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.screen.DirtyRegionTracker;
+import com.choiboi.apps.remotebluetoothserver.screen.ImageScaler;
+import com.choiboi.apps.remotebluetoothserver.screen.CaptureScheduler;
+import com.choiboi.apps.remotebluetoothserver.screen.SlideCacheModel;
+import com.choiboi.apps.remotebluetoothserver.screen.TileCacheModel;
+
+/*
+ * Produces screenshots for one connection off the thread that reads commands.
+ * Frames move through three stages, each on its own thread and joined by
+ * bounded queues:
+ * 
+ *   capture   waits for the key stroke to be injected, then for the screen
+ *             to settle, and takes the screenshot, or shares the one taken
+ *             for another connection at the same time
+ *   encode    scales the screenshot, hashes it, finds the changed tiles
+ *             and encodes those the device does not have cached on every
+ *             core, or refers to the whole slide if the device has it
+ *             cached
+ *   write     sends the payload to the device on the bulk channel
+ * 
+ * Queues between stages hold a single item and a newer item replaces an older
+ * one, so a burst of commands only ever produces the latest frame.
+ * 
+ * In streaming mode a fourth thread also requests frames on its own, paced by
+ * a FrameRateController, and those are captured right away instead of waiting
+ * for the screen to settle. Only frames taken after a command are slides
+ * the device caches. With the session thread reading commands that makes
+ * five threads per session, which BluetoothServer bounds by capping the
+ * sessions it serves.
+ * 
+ * A frame stays in its payload buffer until the device acknowledges it, so if
+ * the device finds a damaged chunk the rest of that frame and every frame
+ * after it can be sent again. Frames sent later are patches on top of the
+ * damaged one, so none can be skipped. With every buffer waiting for an
+ * acknowledgement the encode stage waits too, which keeps the device from
+ * falling more than PAYLOAD_BUFFERS frames behind.
+ * 
+ * The pipeline belongs to the session named by the device rather than to the
+ * connection. If the connection is lost, its stages are stopped and it is
+ * held with its frames and cache models for SUSPENDED_TIMEOUT_MS, so the
+ * device can reconnect and go on from the chunk it stopped at.
+ */
+class FramePipeline {
+
+    // Number of payload buffers shared by the encode and write stages,
+    // including those sent and not yet acknowledged
+    private static final int PAYLOAD_BUFFERS = 4;
+
+    // Put ahead of the encoded frames to have the write stage resend frames
+    private static final PayloadBuffer RESEND = new PayloadBuffer(0);
+
+    // Longest wait for a queued key stroke before taking a screenshot
+    private static final long KEY_STROKE_TIMEOUT_MS = 500;
+
+    // Number of frames between reports of the memory allocated per frame
+    private static final int REPORT_INTERVAL = 100;
+
+    // Longest a session whose connection was lost is held for the device
+    private static final long SUSPENDED_TIMEOUT_MS = 60 * 1000;
+
+    // Most sessions held at once, beyond which the oldest is dropped
+    private static final int MAX_SUSPENDED = 4;
+
+    // Longest wait for the stages to stop before a session is held
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    // Sessions whose connection was lost by session id, oldest first
+    private static final Map<Long, FramePipeline> sSuspended = new LinkedHashMap<Long, FramePipeline>();
+
+    // Member fields
+    private final long mSessionId;
+    private ProcessInputConnection mConnection;
+    private FrameEncoder mEncoder;
+    private volatile CaptureScheduler mScheduler;
+    private final TileEncoder mTileEncoder;
+    private final ImageScaler mScaler = new ImageScaler();
+    private final DirtyRegionTracker mDirtyRegions = new DirtyRegionTracker();
+    private final TileCacheModel mTileCache = new TileCacheModel();
+    private final SlideCacheModel mSlideCache = new SlideCacheModel();
+    private final LinkEstimator mLink = new LinkEstimator();
+    private final FrameRateController mRate = new FrameRateController(mLink);
+    private final AllocationMeter mCaptureAllocation = new AllocationMeter("capture");
+    private final AllocationMeter mEncodeAllocation = new AllocationMeter("encode");
+    private final AllocationMeter mWriteAllocation = new AllocationMeter("write");
+
+    private final BlockingQueue<CaptureRequest> mCaptureRequests = new ArrayBlockingQueue<CaptureRequest>(1);
+    private final BlockingQueue<CaptureRequest> mCaptured = new ArrayBlockingQueue<CaptureRequest>(1);
+    private final BlockingDeque<PayloadBuffer> mEncoded = new LinkedBlockingDeque<PayloadBuffer>();
+    private final BlockingQueue<PayloadBuffer> mFreeBuffers = new ArrayBlockingQueue<PayloadBuffer>(PAYLOAD_BUFFERS);
+
+    private Thread[] mStages = new Thread[0];
+    private volatile boolean mStopped;
+    private long mSuspendedAt;
+    private int mImageSequence;
+    private long mLastSentHash;
+    private boolean mHasSentFrame;
+
+    // Tiles of the frame being encoded that the device does not have cached
+    private final List<Rectangle> mEncodeTiles = new ArrayList<Rectangle>();
+    private long[] mTileHashes = new long[64];
+    private boolean[] mTileCached = new boolean[64];
+    private volatile boolean mResendFrame;
+
+    // Frames sent and not yet acknowledged, oldest first, guarded by mUnacked
+    private final ArrayDeque<PayloadBuffer> mUnacked = new ArrayDeque<PayloadBuffer>(PAYLOAD_BUFFERS);
+    private final List<PayloadBuffer> mResendFrames = new ArrayList<PayloadBuffer>(PAYLOAD_BUFFERS);
+    private int mLastAcked;
+    private boolean mResending;
+
+    // Sequence number and chunk to resend from, packed into one value
+    private volatile long mResendFrom;
+
+    /*
+     * Create the pipeline of a new session.
+     * 
+     * @param sessionId session id named by the device
+     * 
+     * @param firstSequence sequence number of the first frame, so frames of a
+     * session the device had before are never taken for frames of this one
+     */
+    FramePipeline(ProcessInputConnection connection, FrameEncoder encoder, CaptureScheduler scheduler,
+            TileEncoder tileEncoder, long sessionId, int firstSequence) {
+        mConnection = connection;
+        mEncoder = encoder;
+        mScheduler = scheduler;
+        mTileEncoder = tileEncoder;
+        mSessionId = sessionId;
+        mImageSequence = firstSequence - 1;
+        mLastAcked = firstSequence - 1;
+
+        for (int i = 0; i < PAYLOAD_BUFFERS; i++)
+            mFreeBuffers.add(new PayloadBuffer(64 * 1024));
+    }
+
+    /*
+     * Hold the pipeline of a session whose connection was lost, so the device
+     * can resume it on a new connection. The stages are stopped first, and if
+     * they do not stop in time the session is released instead.
+     */
+    static void suspend(FramePipeline pipeline) {
+        pipeline.stop();
+        if (!pipeline.awaitStopped()) {
+            pipeline.release();
+            return;
+        }
+        // Resends asked for on the lost connection are asked for again
+        pipeline.mEncoded.removeAll(Collections.singleton(RESEND));
+
+        synchronized (FramePipeline.class) {
+            pipeline.mSuspendedAt = System.currentTimeMillis();
+            FramePipeline replaced = sSuspended.put(pipeline.mSessionId, pipeline);
+            if (replaced != null && replaced != pipeline)
+                replaced.release();
+            releaseExpired();
+        }
+    }
+
+    /*
+     * Take the held pipeline of a session and attach it to a new connection.
+     * Returns null if the session is not held, in which case the device has
+     * to start a new one. The caller then starts it again.
+     * 
+     * @param sessionId session id named by the device
+     */
+    static synchronized FramePipeline resume(long sessionId, ProcessInputConnection connection,
+            FrameEncoder encoder, CaptureScheduler scheduler) {
+        releaseExpired();
+        FramePipeline pipeline = sSuspended.remove(sessionId);
+        if (pipeline != null) {
+            pipeline.mConnection = connection;
+            pipeline.mEncoder = encoder;
+            pipeline.mScheduler = scheduler;
+            // The device starts without the live preview
+            pipeline.mRate.setStreaming(false);
+        }
+        return pipeline;
+    }
+
+    /*
+     * Release held sessions that timed out, and the oldest ones beyond
+     * MAX_SUSPENDED. Called holding the lock on FramePipeline.class.
+     */
+    private static void releaseExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<FramePipeline> held = sSuspended.values().iterator();
+        while (held.hasNext()) {
+            FramePipeline pipeline = held.next();
+            if (sSuspended.size() <= MAX_SUSPENDED && now - pipeline.mSuspendedAt < SUSPENDED_TIMEOUT_MS)
+                break;
+            held.remove();
+            pipeline.release();
+        }
+    }
+
+    /*
+     * Start the stages, on a new session or a resumed one.
+     * 
+     * @param name prefix of the names of the stage threads
+     */
+    void start(String name) {
+        mStopped = false;
+        mStages = new Thread[] {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        captureLoop();
+                    }
+                }, name + "-Capture"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        encodeLoop();
+                    }
+                }, name + "-Encode"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeLoop();
+                    }
+                }, name + "-Write"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        streamLoop();
+                    }
+                }, name + "-Stream") };
+        for (Thread stage : mStages) {
+            stage.setDaemon(true);
+            stage.start();
+        }
+    }
+
+    /*
+     * Stop every stage. Frames still in the pipeline are kept until the
+     * pipeline is released or started again.
+     */
+    void stop() {
+        mStopped = true;
+        for (Thread stage : mStages)
+            stage.interrupt();
+    }
+
+    /*
+     * Stop the stages for good, once the session has ended, and release the
+     * codecs.
+     */
+    void release() {
+        stop();
+        if (!awaitStopped())
+            System.out.println("Frame pipeline did not stop in time");
+        mTileEncoder.close();
+    }
+
+    /*
+     * Wait for the stages to end after stop(). Returns false if one is still
+     * running after STOP_TIMEOUT_MS.
+     */
+    private boolean awaitStopped() {
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
+        try {
+            for (Thread stage : mStages) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait > 0)
+                    stage.join(wait);
+                if (stage.isAlive())
+                    return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Ask for a screenshot to be sent once the given key stroke has been
+     * injected. Replaces any request that has not been started yet.
+     * 
+     * @param afterKeyStroke key stroke to wait for, may be null
+     */
+    void requestFrame(InputInjector.KeyStroke afterKeyStroke) {
+        offerLatest(mCaptureRequests, new CaptureRequest(afterKeyStroke, true));
+    }
+
+    /*
+     * Start or stop pushing frames to the device without waiting for commands.
+     */
+    void setStreaming(boolean streaming) {
+        mRate.setStreaming(streaming);
+    }
+
+    /*
+     * The device acknowledged a frame.
+     * 
+     * @param sequence sequence number of the frame
+     * 
+     * @param decodeMs time the device took to decode and draw it
+     */
+    void onFrameAcked(int sequence, int decodeMs) {
+        mLink.onFrameAcked(sequence, decodeMs);
+        mRate.onFrameAcked(sequence);
+        synchronized (mUnacked) {
+            mLastAcked = sequence;
+            if (!mResending)
+                releaseAcked();
+        }
+    }
+
+    /*
+     * The device found a damaged chunk, so send the frame again from that
+     * chunk on, followed by every frame sent after it. Frames waiting to be
+     * encoded or written are held back until then.
+     * 
+     * @param sequence sequence number of the damaged frame
+     * 
+     * @param chunk index of the damaged chunk
+     */
+    void resend(int sequence, int chunk) {
+        mResendFrom = ((long) sequence << 32) | (chunk & 0xFFFFFFFFL);
+        mEncoded.offerFirst(RESEND);
+    }
+
+    /*
+     * The device could not show a slide it was sent a reference to, so send
+     * the whole frame again.
+     * 
+     * @param hash slide hash of the missing slide
+     */
+    void onSlideMiss(long hash) {
+        mSlideCache.remove(hash);
+        mResendFrame = true;
+        requestFrame(null);
+    }
+
+    /*
+     * Return the measurements of the link to the device.
+     */
+    LinkEstimator getLinkEstimator() {
+        return mLink;
+    }
+
+    /*
+     * Return the memory allocated per frame by each stage, for logging.
+     */
+    String getAllocationReport() {
+        return mCaptureAllocation + ", " + mEncodeAllocation + ", " + mWriteAllocation;
+    }
+
+    /*
+     * Capture another display or region from the next screenshot on.
+     */
+    void setCaptureScheduler(CaptureScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    /*
+     * Set the size of the view the device shows screenshots in.
+     */
+    void setTargetSize(int width, int height) {
+        mScaler.setTargetSize(width, height);
+    }
+
+    private void captureLoop() {
+        try {
+            while (!mStopped) {
+                CaptureRequest request = mCaptureRequests.take();
+
+                // Make sure the last key stroke has reached the display
+                if (request.mKeyStroke != null)
+                    request.mKeyStroke.await(KEY_STROKE_TIMEOUT_MS);
+
+                // Robot allocates a new image for every capture, so this
+                // stage cannot avoid allocating; it is measured all the same
+                mCaptureAllocation.begin();
+                request.mCapture = mScheduler.capture(request.mWaitUntilStable);
+                mCaptureAllocation.end();
+
+                // A newer command arrived while the screen was settling, so
+                // this capture is already stale
+                if (!mCaptureRequests.isEmpty())
+                    continue;
+
+                offerLatest(mCaptured, request);
+            }
+        } catch (InterruptedException e) {
+            // Pipeline stopped
+        }
+    }
+
+    private void encodeLoop() {
+        try {
+            while (!mStopped) {
+                CaptureRequest request = mCaptured.take();
+                PayloadBuffer buffer = mFreeBuffers.take();
+                try {
+                    mEncodeAllocation.begin();
+                    try {
+                        encodeFrame(mScaler.scale(request.mCapture), request.mWaitUntilStable, buffer);
+                    } catch (InterruptedException e) {
+                        // Stopped half way, so the session can still resume
+                        forgetUnsentFrame();
+                        mFreeBuffers.add(buffer);
+                        throw e;
+                    }
+                    request.mCapture = null;
+                    mEncodeAllocation.end();
+                    mEncoded.put(buffer);
+
+                    int frames = mEncodeAllocation.getFrames();
+                    if (frames > 0 && frames % REPORT_INTERVAL == 0)
+                        System.out.println("Allocated per frame: " + getAllocationReport());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    forgetUnsentFrame();
+                    mFreeBuffers.put(buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Pipeline stopped
+        }
+    }
+
+    /*
+     * A frame failed to encode and is never sent, yet the reference frame and
+     * the tile cache model were already updated for it. Forget both, so the
+     * next frame is sent whole with every tile's pixels. The device holds more
+     * tiles than the emptied model, never fewer, so no reference can miss.
+     */
+    private void forgetUnsentFrame() {
+        mDirtyRegions.reset();
+        mTileCache.clear();
+        mHasSentFrame = false;
+    }
+
+    private void writeLoop() {
+        try {
+            while (!mStopped) {
+                PayloadBuffer buffer = mEncoded.take();
+                if (buffer == RESEND) {
+                    resendUnacked();
+                    continue;
+                }
+
+                mWriteAllocation.begin();
+                buffer.setSequence(++mImageSequence);
+                synchronized (mUnacked) {
+                    mUnacked.add(buffer);
+                }
+                // Timed from before the write, which blocks until the link
+                // has taken most of the frame
+                mLink.onFrameSending(mImageSequence);
+                mRate.onFrameSending(mImageSequence);
+                // Sent in fragments, so command acknowledgements and the
+                // display list go out between them
+                int bytes = mEncoder.writeBulkFrame(buffer.getFrameType(), mImageSequence, buffer.getBuffer(), 0,
+                        buffer.size(), 0);
+                mLink.onFrameSent(mImageSequence, bytes);
+                mRate.onFrameSent(mImageSequence, bytes);
+                mWriteAllocation.end();
+            }
+        } catch (InterruptedException e) {
+            // Pipeline stopped
+        } catch (IOException e) {
+            if (!mStopped) {
+                e.printStackTrace();
+                mConnection.close();
+            }
+        }
+    }
+
+    /*
+     * Send the frame the device asked for again from the damaged chunk on, and
+     * every frame after it from the start. Frames are not released while
+     * they are being sent, even if acknowledged meanwhile. A resumed session
+     * may ask for the frame that is next to be sent, which needs nothing
+     * resent. Throws if the frame is no longer held, which closes the
+     * connection.
+     */
+    private void resendUnacked() throws IOException, InterruptedException {
+        long from = mResendFrom;
+        int sequence = (int) (from >>> 32);
+        int chunk = (int) from;
+
+        mResendFrames.clear();
+        synchronized (mUnacked) {
+            mResending = true;
+            for (PayloadBuffer buffer : mUnacked) {
+                if (buffer.getSequence() - sequence >= 0)
+                    mResendFrames.add(buffer);
+            }
+        }
+        try {
+            if (mResendFrames.isEmpty() && sequence - mImageSequence > 0)
+                return;
+            // The device skips every other frame until it gets this one, so
+            // without it the session can only start over on a new connection
+            if (mResendFrames.isEmpty() || mResendFrames.get(0).getSequence() != sequence)
+                throw new IOException("Frame " + sequence + " is no longer held, cannot resend it");
+            System.out.println("Resending frame " + sequence + " from chunk " + chunk + " and "
+                    + (mResendFrames.size() - 1) + " frames after it");
+
+            for (PayloadBuffer buffer : mResendFrames) {
+                int firstChunk = buffer.getSequence() == sequence ? chunk : 0;
+                mEncoder.writeBulkFrame(buffer.getFrameType(), buffer.getSequence(), buffer.getBuffer(), 0,
+                        buffer.size(), firstChunk);
+            }
+        } finally {
+            mResendFrames.clear();
+            synchronized (mUnacked) {
+                mResending = false;
+                releaseAcked();
+            }
+        }
+    }
+
+    /*
+     * Return the buffers of acknowledged frames to the encode stage. Frames
+     * reach the device in order, so an acknowledgement covers every frame
+     * sent before it too. Called holding the lock on mUnacked.
+     */
+    private void releaseAcked() {
+        while (!mUnacked.isEmpty() && mUnacked.peek().getSequence() - mLastAcked <= 0)
+            mFreeBuffers.add(mUnacked.poll());
+    }
+
+    private void streamLoop() {
+        try {
+            while (!mStopped) {
+                mRate.awaitNextFrame();
+                offerLatest(mCaptureRequests, new CaptureRequest(null, false));
+            }
+        } catch (InterruptedException e) {
+            // Pipeline stopped
+        }
+    }
+
+    /*
+     * Encode the parts of the frame that changed since the last frame sent to
+     * the device. If the content hash matches that frame, nothing is encoded
+     * and the buffer is left empty for an unchanged marker. Every frame sent
+     * before reaches the device ahead of this one on the ordered stream, so
+     * the device is certain to be showing that frame when it gets the marker.
+     * 
+     * Which tiles the device has cached is decided tile by tile in payload
+     * order, as the device fills its cache in that order, and the tiles it
+     * does not have are then encoded in parallel.
+     * 
+     * @param slide true if the frame was taken after a command
+     */
+    private void encodeFrame(BufferedImage frame, boolean slide, PayloadBuffer buffer)
+            throws IOException, InterruptedException {
+        // Workers of the last frame read the frame buffer and the tile list
+        // until they finish, even if that frame failed
+        mTileEncoder.awaitIdle();
+        buffer.reset();
+        long hash = mDirtyRegions.load(frame);
+
+        // The device missed a slide and kept showing the frame before it, so
+        // the last frame sent is no reference any more
+        if (mResendFrame) {
+            mResendFrame = false;
+            mDirtyRegions.reset();
+            mHasSentFrame = false;
+        }
+
+        if (mHasSentFrame && hash == mLastSentHash) {
+            buffer.setFrameType(Protocol.TYPE_IMAGE_UNCHANGED);
+            return;
+        }
+        mLastSentHash = hash;
+        mHasSentFrame = true;
+
+        List<Rectangle> tiles = mDirtyRegions.commit();
+
+        // Going back to an earlier slide, which the device can show from its
+        // slide cache without any pixels being sent
+        if (slide && mSlideCache.touch(hash)) {
+            buffer.setFrameType(Protocol.TYPE_IMAGE_CACHED);
+            buffer.writeInt(frame.getWidth());
+            buffer.writeInt(frame.getHeight());
+            buffer.writeLong(hash);
+            return;
+        }
+        // Tiles the device already holds, such as backgrounds and logos
+        // repeated on every slide, are sent as a reference only
+        if (mTileHashes.length < tiles.size()) {
+            mTileHashes = new long[tiles.size()];
+            mTileCached = new boolean[tiles.size()];
+        }
+        mEncodeTiles.clear();
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle tile = tiles.get(i);
+            long tileHash = mDirtyRegions.tileHash(tile);
+            mTileHashes[i] = tileHash;
+            mTileCached[i] = mTileCache.touch(tileHash);
+            if (!mTileCached[i]) {
+                mTileCache.add(tileHash);
+                mEncodeTiles.add(tile);
+            }
+        }
+        mTileEncoder.start(mDirtyRegions.getFrame(), mEncodeTiles);
+
+        buffer.setFrameType(Protocol.TYPE_IMAGE);
+        buffer.writeInt(frame.getWidth());
+        buffer.writeInt(frame.getHeight());
+        buffer.writeInt(tiles.size());
+        buffer.writeLong(slide ? hash : Protocol.NO_SLIDE);
+        int encoded = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle tile = tiles.get(i);
+            buffer.writeInt(tile.x);
+            buffer.writeInt(tile.y);
+            buffer.writeInt(tile.width);
+            buffer.writeInt(tile.height);
+
+            if (mTileCached[i]) {
+                buffer.writeInt(Protocol.CODEC_TILE_REF);
+                buffer.writeLong(mTileHashes[i]);
+                buffer.writeInt(0);
+                continue;
+            }
+
+            buffer.writeInt(mTileEncoder.getId());
+            buffer.writeLong(mTileHashes[i]);
+
+            // Length of the encoded tile is filled in once it is known
+            int lengthOffset = buffer.size();
+            buffer.writeInt(0);
+            mTileEncoder.appendTo(encoded++, buffer);
+            buffer.setInt(lengthOffset, buffer.size() - lengthOffset - 4);
+        }
+
+        // Only once every tile is encoded, so a slide that failed is not
+        // referred to later
+        if (slide)
+            mSlideCache.add(hash);
+    }
+
+    /*
+     * Put the item on a single item queue, replacing whatever is waiting there.
+     */
+    private static <T> void offerLatest(BlockingQueue<T> queue, T item) {
+        while (!queue.offer(item))
+            queue.poll();
+    }
+
+    private static class CaptureRequest {
+        private final InputInjector.KeyStroke mKeyStroke;
+        private final boolean mWaitUntilStable;
+
+        // Screenshot taken for the request, handed from capture to encode
+        private BufferedImage mCapture;
+
+        CaptureRequest(InputInjector.KeyStroke keyStroke, boolean waitUntilStable) {
+            mKeyStroke = keyStroke;
+            mWaitUntilStable = waitUntilStable;
+        }
+    }
+}
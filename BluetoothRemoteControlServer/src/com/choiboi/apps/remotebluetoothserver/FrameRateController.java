@@ -0,0 +1,127 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+/*
+ * Paces the frames pushed to a device in streaming mode. Only one frame is
+ * in flight at a time: the next one is not captured until the device has
+ * acknowledged the last, so frames the link or the device cannot keep up with
+ * are never taken rather than queued behind each other. On top of that the
+ * frame rate is held between the configured minimum and maximum, from the
+ * time this computer takes to capture and encode a frame plus the time the
+ * LinkEstimator expects one of the same size to take to be delivered.
+ */
+class FrameRateController {
+
+    // Frame rate limits, overridable with system properties
+    private static final int MIN_FPS = Integer.getInteger("bluetoothremote.stream.minFps", 1);
+    private static final int MAX_FPS = Integer.getInteger("bluetoothremote.stream.maxFps", 10);
+
+    private static final long MIN_INTERVAL_MS = 1000 / Math.max(MAX_FPS, 1);
+    private static final long MAX_INTERVAL_MS = 1000 / Math.max(MIN_FPS, 1);
+
+    // A frame not acknowledged within this time is assumed lost
+    private static final long ACK_TIMEOUT_MS = 2000;
+
+    // Weight of a new sample in the moving average, as a right shift
+    private static final int SMOOTHING_SHIFT = 2;
+
+    // Member fields
+    private final LinkEstimator mLink;
+    private boolean mStreaming;
+    private boolean mFrameInFlight;
+    private int mInFlightSequence;
+    private long mRequestedAtMs;
+    private long mPrepareMs;
+    private int mLastFrameBytes;
+
+    FrameRateController(LinkEstimator link) {
+        mLink = link;
+    }
+
+    /*
+     * Turn streaming on or off. Frames requested because of commands are
+     * still sent either way.
+     */
+    synchronized void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+        mFrameInFlight = false;
+        notifyAll();
+    }
+
+    synchronized boolean isStreaming() {
+        return mStreaming;
+    }
+
+    /*
+     * Block until the next streamed frame should be captured, then count it
+     * as in flight.
+     */
+    synchronized void awaitNextFrame() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait;
+            if (!mStreaming) {
+                wait = 0;
+            } else if (mFrameInFlight) {
+                wait = mRequestedAtMs + ACK_TIMEOUT_MS - now;
+            } else {
+                wait = mRequestedAtMs + getFrameInterval() - now;
+            }
+
+            if (mStreaming && wait <= 0)
+                break;
+            wait(Math.max(wait, 0));
+        }
+
+        mFrameInFlight = true;
+        mInFlightSequence = 0;
+        mRequestedAtMs = System.currentTimeMillis();
+    }
+
+    /*
+     * A frame is about to be written to the device, so its acknowledgement
+     * can be matched even if it arrives before the write returns.
+     *
+     * @param sequence sequence number of the TYPE_IMAGE or
+     * TYPE_IMAGE_UNCHANGED frame
+     */
+    synchronized void onFrameSending(int sequence) {
+        if (!mFrameInFlight)
+            return;
+        mInFlightSequence = sequence;
+        mPrepareMs += (System.currentTimeMillis() - mRequestedAtMs - mPrepareMs) >> SMOOTHING_SHIFT;
+    }
+
+    /*
+     * A frame has been written to the device.
+     *
+     * @param sequence sequence number of the frame
+     *
+     * @param bytes size of the frame including its headers and those of its
+     * fragments
+     */
+    synchronized void onFrameSent(int sequence, int bytes) {
+        if (sequence == mInFlightSequence)
+            mLastFrameBytes = bytes;
+    }
+
+    /*
+     * The device acknowledged a frame, so the next one may be captured.
+     *
+     * @param sequence sequence number of the frame acknowledged
+     */
+    synchronized void onFrameAcked(int sequence) {
+        if (!mFrameInFlight || sequence != mInFlightSequence)
+            return;
+
+        mFrameInFlight = false;
+        notifyAll();
+    }
+
+    /*
+     * Return the time between the start of two streamed frames.
+     */
+    synchronized long getFrameInterval() {
+        long cycle = mPrepareMs + mLink.getDeliveryTime(mLastFrameBytes);
+        return Math.min(Math.max(cycle, MIN_INTERVAL_MS), MAX_INTERVAL_MS);
+    }
+}
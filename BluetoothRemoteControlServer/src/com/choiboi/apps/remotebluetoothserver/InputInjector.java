@@ -0,0 +1,159 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+import java.awt.AWTException;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.Robot;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Injects key events into a display. There is one injector per screen, each
+ * owning a single long-lived Robot and a single thread that drains a lock-free
+ * queue of key strokes, so key strokes from every connected device are
+ * serialized without paying for a new Robot on each command.
+ */
+public class InputInjector implements Runnable {
+
+    // Number of key strokes between latency reports
+    private static final int REPORT_INTERVAL = 50;
+
+    private static final Map<String, InputInjector> sInjectors = new HashMap<String, InputInjector>();
+
+    // Member fields
+    private final Robot mRobot;
+    private final String mScreenId;
+    private final ConcurrentLinkedQueue<KeyStroke> mQueue = new ConcurrentLinkedQueue<KeyStroke>();
+    private final Thread mThread;
+
+    // Latency statistics, only written by the injection thread
+    private volatile long mInjectedCount;
+    private volatile long mTotalLatencyNanos;
+    private volatile long mMaxLatencyNanos;
+
+    private InputInjector(GraphicsDevice device) throws AWTException {
+        mRobot = new Robot(device);
+        mRobot.setAutoDelay(0);
+        mRobot.setAutoWaitForIdle(false);
+        mScreenId = device.getIDstring();
+
+        mThread = new Thread(this, "InputInjector-" + mScreenId);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /*
+     * Return the injector for the given screen, creating it on first use.
+     */
+    public static synchronized InputInjector forDevice(GraphicsDevice device) throws AWTException {
+        InputInjector injector = sInjectors.get(device.getIDstring());
+        if (injector == null) {
+            injector = new InputInjector(device);
+            sInjectors.put(device.getIDstring(), injector);
+        }
+        return injector;
+    }
+
+    /*
+     * Return the injector for the default screen.
+     */
+    public static InputInjector forDefaultScreen() throws AWTException {
+        if (GraphicsEnvironment.isHeadless())
+            throw new AWTException("headless environment");
+        return forDevice(GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice());
+    }
+
+    /*
+     * Queue a key stroke. The keys are pressed in the order given and released
+     * in reverse order, so modifiers go first, e.g. inject(VK_CONTROL, VK_L).
+     * 
+     * @param keys KeyEvent.VK_ constants
+     */
+    public KeyStroke inject(int... keys) {
+        KeyStroke stroke = new KeyStroke(keys);
+        mQueue.offer(stroke);
+        LockSupport.unpark(mThread);
+        return stroke;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            KeyStroke stroke = mQueue.poll();
+            if (stroke == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            try {
+                int[] keys = stroke.mKeys;
+                for (int i = 0; i < keys.length; i++)
+                    mRobot.keyPress(keys[i]);
+                for (int i = keys.length - 1; i >= 0; i--)
+                    mRobot.keyRelease(keys[i]);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                stroke.mDone.countDown();
+            }
+
+            recordLatency(System.nanoTime() - stroke.mQueuedAt);
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        mInjectedCount++;
+        mTotalLatencyNanos += latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos)
+            mMaxLatencyNanos = latencyNanos;
+
+        if (mInjectedCount % REPORT_INTERVAL == 0) {
+            System.out.println("Injected " + mInjectedCount + " key strokes on " + mScreenId + ", average latency "
+                    + getAverageLatencyMicros() + "us, max " + mMaxLatencyNanos / 1000 + "us");
+        }
+    }
+
+    /*
+     * Return the average time between queueing a key stroke and it being
+     * injected, in microseconds.
+     */
+    public long getAverageLatencyMicros() {
+        long count = mInjectedCount;
+        return count == 0 ? 0 : mTotalLatencyNanos / count / 1000;
+    }
+
+    public long getMaxLatencyMicros() {
+        return mMaxLatencyNanos / 1000;
+    }
+
+    public long getInjectedCount() {
+        return mInjectedCount;
+    }
+
+    /*
+     * A queued key stroke. Callers that need the key stroke to have reached the
+     * display, such as before taking a screenshot, can wait on it.
+     */
+    public static class KeyStroke {
+        private final int[] mKeys;
+        private final long mQueuedAt;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private KeyStroke(int[] keys) {
+            mKeys = keys;
+            mQueuedAt = System.nanoTime();
+        }
+
+        /*
+         * Wait until the key stroke has been injected. Returns false if the
+         * timeout elapsed first.
+         */
+        public boolean await(long timeoutMs) throws InterruptedException {
+            return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+/*
+ * Measures the link to one device from the size of the frames sent to it and
+ * the time until they are acknowledged. Acknowledgements carry the time the
+ * device spent decoding the frame, which is taken off first.
+ *
+ * Frames small enough to fit in a single packet, such as unchanged markers,
+ * give round trip time samples, which are smoothed the way TCP smooths them.
+ * Larger frames give throughput samples from the time left over once a round
+ * trip is taken off. The link is assumed busy with the previous frame until
+ * that one was acknowledged, so a frame queued behind another is not counted
+ * as slow.
+ */
+public class LinkEstimator {
+
+    // Frames up to this size are treated as taking no time to transfer
+    private static final int SMALL_FRAME_BYTES = 1024;
+
+    // Number of frames that may be awaiting an acknowledgement
+    private static final int MAX_PENDING = 8;
+
+    // Throughput assumed until the first measurement, in bytes per second
+    private static final long INITIAL_THROUGHPUT = 64 * 1024;
+
+    // Member fields
+    private final int[] mPendingSequences = new int[MAX_PENDING];
+    private final long[] mPendingSentAt = new long[MAX_PENDING];
+    private final int[] mPendingBytes = new int[MAX_PENDING];
+    private int mPendingCount;
+    private long mLastAckAt;
+
+    private boolean mHasRtt;
+    private long mSmoothedRttMs;
+    private long mRttVariationMs;
+    private long mThroughput = INITIAL_THROUGHPUT;
+    private long mDecodeMs;
+    private long mBytesSent;
+    private int mFramesAcked;
+
+    /*
+     * Note a frame about to be written to the device. Its transfer is timed
+     * from here, as writing it takes as long as the link needs to take it.
+     *
+     * @param sequence sequence number of the frame
+     */
+    public synchronized void onFrameSending(int sequence) {
+        // Forget the oldest frame if acknowledgements have stopped arriving
+        if (mPendingCount == MAX_PENDING)
+            removePending(0);
+
+        mPendingSequences[mPendingCount] = sequence;
+        mPendingSentAt[mPendingCount] = System.currentTimeMillis();
+        mPendingBytes[mPendingCount] = -1;
+        mPendingCount++;
+    }
+
+    /*
+     * Note a frame written to the device.
+     *
+     * @param sequence sequence number of the frame
+     *
+     * @param bytes size of the frame including its headers and those of its
+     * fragments
+     */
+    public synchronized void onFrameSent(int sequence, int bytes) {
+        int index = indexOfPending(sequence);
+        if (index >= 0)
+            mPendingBytes[index] = bytes;
+        mBytesSent += bytes;
+    }
+
+    /*
+     * Take a measurement from an acknowledged frame.
+     *
+     * @param sequence sequence number of the frame
+     *
+     * @param decodeMs time the device took to decode and draw it
+     */
+    public synchronized void onFrameAcked(int sequence, int decodeMs) {
+        int index = indexOfPending(sequence);
+        if (index < 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        long start = Math.max(mPendingSentAt[index], mLastAckAt);
+        int bytes = mPendingBytes[index];
+
+        // Acknowledgements arrive in order, so any earlier frame still
+        // pending will never be acknowledged
+        for (int i = 0; i <= index; i++)
+            removePending(0);
+        mLastAckAt = now;
+        mFramesAcked++;
+
+        mDecodeMs = smooth(mDecodeMs, decodeMs, 2);
+        long elapsed = Math.max(now - start - decodeMs, 0);
+
+        // The acknowledgement overtook the writing thread, so the size of the
+        // frame is not known yet
+        if (bytes < 0)
+            return;
+
+        if (bytes <= SMALL_FRAME_BYTES) {
+            addRttSample(elapsed);
+        } else {
+            long transfer = elapsed - mSmoothedRttMs;
+            if (transfer > 0)
+                mThroughput = smooth(mThroughput, bytes * 1000L / transfer, 2);
+        }
+    }
+
+    /*
+     * Return the smoothed round trip time in milliseconds.
+     */
+    public synchronized long getSmoothedRtt() {
+        return mSmoothedRttMs;
+    }
+
+    /*
+     * Return the mean deviation of the round trip time in milliseconds.
+     */
+    public synchronized long getRttVariation() {
+        return mRttVariationMs;
+    }
+
+    /*
+     * Return the smoothed throughput in bytes per second.
+     */
+    public synchronized long getThroughput() {
+        return mThroughput;
+    }
+
+    /*
+     * Return the smoothed time the device takes to decode a frame in
+     * milliseconds.
+     */
+    public synchronized long getDecodeTime() {
+        return mDecodeMs;
+    }
+
+    /*
+     * Return the expected time in milliseconds from sending a frame of the
+     * given size until its acknowledgement arrives.
+     *
+     * @param bytes size of the frame
+     */
+    public synchronized long getDeliveryTime(int bytes) {
+        return mSmoothedRttMs + bytes * 1000L / mThroughput + mDecodeMs;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized int getFramesAcked() {
+        return mFramesAcked;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "rtt " + mSmoothedRttMs + "ms (+/-" + mRttVariationMs + "ms), " + (mThroughput / 1024) + "KB/s, decode "
+                + mDecodeMs + "ms";
+    }
+
+    /*
+     * Smooth round trip times as in RFC 6298, with gains of 1/8 and 1/4.
+     */
+    private void addRttSample(long rtt) {
+        if (!mHasRtt) {
+            mSmoothedRttMs = rtt;
+            mRttVariationMs = rtt / 2;
+            mHasRtt = true;
+            return;
+        }
+        mRttVariationMs = smooth(mRttVariationMs, Math.abs(mSmoothedRttMs - rtt), 2);
+        mSmoothedRttMs = smooth(mSmoothedRttMs, rtt, 3);
+    }
+
+    private int indexOfPending(int sequence) {
+        for (int i = 0; i < mPendingCount; i++) {
+            if (mPendingSequences[i] == sequence)
+                return i;
+        }
+        return -1;
+    }
+
+    private void removePending(int index) {
+        mPendingCount--;
+        System.arraycopy(mPendingSequences, index + 1, mPendingSequences, index, mPendingCount - index);
+        System.arraycopy(mPendingSentAt, index + 1, mPendingSentAt, index, mPendingCount - index);
+        System.arraycopy(mPendingBytes, index + 1, mPendingBytes, index, mPendingCount - index);
+    }
+
+    /*
+     * Move the average a 1/2^shift step towards the sample.
+     */
+    private static long smooth(long average, long sample, int shift) {
+        return average + ((sample - average) >> shift);
+    }
+}
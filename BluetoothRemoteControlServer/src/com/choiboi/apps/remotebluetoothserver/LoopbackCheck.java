@@ -0,0 +1,93 @@
+package com.choiboi.apps.remotebluetoothserver;
+
+import java.io.IOException;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameDecoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.transport.LoopbackTransport;
+import com.choiboi.apps.remotebluetoothserver.transport.TransportConnection;
+
+/*
+ * Round trip through a real server session over the in-memory transport,
+ * for checking the server on a machine without Bluetooth hardware:
+ * 
+ *   java -cp bin:lib/bluecove-2.1.0.jar com.choiboi.apps.remotebluetoothserver.LoopbackCheck
+ * 
+ * Plays the device: says hello, sends a command and waits for the server to
+ * acknowledge it, then ends the session. Exits with status 0 if it did, 1 otherwise.
+ */
+public class LoopbackCheck {
+
+    private static final long TIMEOUT_MS = 10000;
+    private static final String DEVICE_NAME = "LoopbackCheck";
+
+    public static void main(String[] args) throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+        final BluetoothServer server = new BluetoothServer(transport);
+        Thread acceptor = new Thread(server, "Acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Give up if the server never answers
+        Thread watchdog = new Thread("Watchdog") {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("LOOPBACK CHECK FAILED: no acknowledgement within " + TIMEOUT_MS + " ms");
+                System.exit(1);
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        boolean acked = false;
+        TransportConnection connection = transport.connect();
+        try {
+            FrameEncoder encoder = new FrameEncoder(connection.openOutputStream());
+            FrameDecoder decoder = new FrameDecoder(connection.openInputStream());
+
+            // A new session, with the first frame still to come
+            byte[] name = DEVICE_NAME.getBytes("UTF-8");
+            byte[] hello = new byte[Protocol.HELLO_HEADER_LENGTH + name.length];
+            FrameEncoder.writeInt(hello, 0, 0);
+            FrameEncoder.writeInt(hello, 4, (int) System.nanoTime());
+            FrameEncoder.writeInt(hello, 8, 1);
+            FrameEncoder.writeInt(hello, 12, 0);
+            System.arraycopy(name, 0, hello, Protocol.HELLO_HEADER_LENGTH, name.length);
+            encoder.writeFrame(Protocol.TYPE_HELLO, 0, hello, 0, hello.length);
+            encoder.writeFrame(Protocol.TYPE_COMMAND, 1, Protocol.CMD_APP_STARTED, Protocol.PROGRAM_NONE, 1);
+
+            acked = awaitAck(decoder, 1);
+
+            // End the session the way the device does
+            encoder.writeFrame(Protocol.TYPE_COMMAND, 2, Protocol.CMD_EXIT, Protocol.PROGRAM_NONE, 1);
+            acked &= awaitAck(decoder, 2);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            connection.close();
+            server.shutdown();
+        }
+
+        System.out.println(acked ? "LOOPBACK CHECK PASSED" : "LOOPBACK CHECK FAILED: connection closed");
+        System.exit(acked ? 0 : 1);
+    }
+
+    /*
+     * Read frames until the command is acknowledged. Screenshots and the
+     * display list may come first on a machine with a screen. Returns false if
+     * the server closed the connection instead.
+     */
+    private static boolean awaitAck(FrameDecoder decoder, int sequence) throws IOException {
+        while (decoder.readFrame()) {
+            if (decoder.getType() == Protocol.TYPE_COMMAND_ACK && decoder.getSequence() - sequence >= 0)
+                return true;
+        }
+        return false;
+    }
+}
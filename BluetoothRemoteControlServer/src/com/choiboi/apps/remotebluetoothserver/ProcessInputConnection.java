@@ -1,237 +1,423 @@
 package com.choiboi.apps.remotebluetoothserver;
 
+import java.awt.AWTException;
 import java.awt.Rectangle;
-import java.awt.Robot;
-import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 
-import javax.imageio.ImageIO;
-import javax.microedition.io.StreamConnection;
+import com.choiboi.apps.remotebluetoothserver.codec.TileEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameDecoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.screen.CaptureRegions;
+import com.choiboi.apps.remotebluetoothserver.screen.CaptureScheduler;
+import com.choiboi.apps.remotebluetoothserver.transport.TransportConnection;
 
 public class ProcessInputConnection implements Runnable {
 
     // Member fields
-    private StreamConnection connection;
-    private OutputStream mOutputStream;
-    private InputStream mInputStream;
+    private TransportConnection connection;
+    private FrameDecoder mDecoder;
+    private FrameEncoder mEncoder;
+    private FramePipeline mPipeline;
+    private int mLastCommandSequence;
+    private int mUnackedCommands;
     private String mOS = "";
     private String mConnectedDeviceName = "";
-
-    // Command constants sent from the mobile device.
-    private static final String DEVICE_CONNECTED = "DEVICE_CONNECTED";
-    private static final String KEY_LEFT = "LEFT";
-    private static final String KEY_DOWN = "DOWN";
-    private static final String KEY_UP = "UP";
-    private static final String KEY_RIGHT = "RIGHT";
-    private static final String GO_FULLSCREEN = "GO_FULLSCREEN";
-    private static final String EXIT_FULLSCREEN = "EXIT_FULLSCREEN";
-    private static final String APP_STARTED = "APP_STARTED";
-    private static final String EXIT_CMD = "EXIT";
-    private static final String CMD = "CMD";
-
-    // Acknowledge from the server
-    private static final String ACKNOWLEDGE = "<ACK>";
-    private static final String ACKNOWLEDGE_CMD_RECEIVED = "<ACK-CMD-RECEIVED>";
-    private static final String ACKNOWLEDGE_IMG_CAN_RECEIVE = "<ACK-IMG-CAN-RECEIVE>";
-    private static final String ACKNOWLEDGE_IMG_SENDING = "<ACK-IMG-SENDING>";
-    private static final String ACKNOWLEDGE_IMG_RECEIVED = "<ACK-IMG-RECEIVED>";
-
-    // Regex for parsing commands
-    private static final String COLON = ":";
+    private InputInjector mInjector;
+    private InputInjector.KeyStroke mLastKeyStroke;
+    private CaptureScheduler mScheduler;
+    private final CaptureRegions mCaptureRegions = new CaptureRegions();
+    private int mProgram = Protocol.PROGRAM_NONE;
+    private boolean mSessionEnded;
 
     // Operating Systems
     private static final String WINDOWS = "window";
     private static final String MAC_OS = "mac";
 
-    // Presentation programs
-    private static final String BROWSER = "BROWSER";
-    private static final String MICROSOFT_POWERPOINT = "MICRO_PPT";
-    private static final String ADOBE_READER = "ADOBE_PDF";
-
-    public ProcessInputConnection(StreamConnection conn) {
+    public ProcessInputConnection(TransportConnection conn) {
         connection = conn;
         mOS = System.getProperty("os.name").toLowerCase();
+
+        try {
+            mInjector = InputInjector.forDefaultScreen();
+            mScheduler = CaptureScheduler.forBounds(CaptureRegions.getConfiguredBounds());
+        } catch (AWTException e) {
+            System.out.println("Key events and screenshots cannot be generated on this computer");
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void run() {
         try {
-            // Open up InputStream and OutputStream to send and receive data
-            mInputStream = connection.openDataInputStream();
-            mOutputStream = connection.openDataOutputStream();
-            byte[] buffer = new byte[1024];
-            int bytes;
-            String[] inputCmd;
-
-            // Read for connected device name
-            bytes = mInputStream.read(buffer);
-            inputCmd = parseInputCommand(new String(buffer, 0, bytes));
-            if (inputCmd[0].equals(DEVICE_CONNECTED)) {
-                mConnectedDeviceName = inputCmd[1];
-                System.out.println("\nThis Device is Connected to: " + inputCmd[1]);
+            // Open up InputStream and OutputStream to send and receive frames
+            mDecoder = new FrameDecoder(connection.openInputStream());
+            mEncoder = new FrameEncoder(connection.openOutputStream());
+
+            // Read for connected device name and the session to go on with
+            long sessionId = 0;
+            int resumeSequence = 1;
+            int resumeChunk = 0;
+            if (mDecoder.readFrame() && mDecoder.getType() == Protocol.TYPE_HELLO) {
+                sessionId = mDecoder.getPayloadLong(0);
+                resumeSequence = mDecoder.getPayloadInt(8);
+                resumeChunk = mDecoder.getPayloadInt(12);
+                mConnectedDeviceName = mDecoder.getPayloadString(Protocol.HELLO_HEADER_LENGTH);
+                System.out.println("\nThis Device is Connected to: " + mConnectedDeviceName);
+            }
+
+            // Screenshots are captured, encoded and sent on their own threads
+            // so that commands keep being read and injected meanwhile. If the
+            // last connection of the session was lost, its pipeline goes on
+            // from the chunk the device stopped at.
+            if (mScheduler != null) {
+                mPipeline = FramePipeline.resume(sessionId, this, mEncoder, mScheduler);
+                if (mPipeline != null) {
+                    System.out.println(mConnectedDeviceName + ": resuming from frame " + resumeSequence
+                            + ", chunk " + resumeChunk);
+                    mPipeline.resend(resumeSequence, resumeChunk);
+                    sendSession(true);
+                } else {
+                    mPipeline = new FramePipeline(this, mEncoder, mScheduler, new TileEncoder(), sessionId,
+                            resumeSequence);
+                    sendSession(false);
+                }
+                mPipeline.start(Thread.currentThread().getName());
+                sendDisplayList();
+            } else {
+                sendSession(false);
             }
 
             System.out.println("Waiting for commands.....");
 
-            while (true) {
-                bytes = mInputStream.read(buffer);
-                
-                if (bytes == -1) {
-                    System.out.println("==============APPLICATION ENDED==============");
+            while (mDecoder.readFrame()) {
+                switch (mDecoder.getType()) {
+                case Protocol.TYPE_COMMAND:
+                    int command = mDecoder.getPayloadByte(0);
+                    processProgram(mDecoder.getPayloadByte(1));
+                    processCommand(command, mDecoder.getPayloadByte(1), Math.max(1, mDecoder.getPayloadByte(2)));
+                    mLastCommandSequence = mDecoder.getSequence();
+                    mUnackedCommands++;
+                    if (command == Protocol.CMD_EXIT)
+                        mSessionEnded = true;
+
+                    // Commands are pipelined, so only acknowledge once the
+                    // burst has been drained or the ack interval is reached,
+                    // and only send a screenshot once nothing else is queued.
+                    boolean burstDrained = !mDecoder.hasBufferedInput();
+                    if (burstDrained || mUnackedCommands >= Protocol.COMMAND_ACK_INTERVAL)
+                        sendCommandAck();
+                    if (burstDrained && command != Protocol.CMD_EXIT)
+                        sendScreenshot();
+                    break;
+                case Protocol.TYPE_IMAGE_ACK:
+                    // The payload is the time the device took to decode it
+                    if (mPipeline != null)
+                        mPipeline.onFrameAcked(mDecoder.getSequence(),
+                                mDecoder.getLength() >= Protocol.IMAGE_ACK_LENGTH ? mDecoder.getPayloadInt(0) : 0);
+                    break;
+                case Protocol.TYPE_SLIDE_MISS:
+                    if (mPipeline != null)
+                        mPipeline.onSlideMiss(mDecoder.getPayloadLong(0));
+                    break;
+                case Protocol.TYPE_RESEND:
+                    if (mPipeline != null)
+                        mPipeline.resend(mDecoder.getSequence(), mDecoder.getPayloadInt(0));
+                    break;
+                case Protocol.TYPE_STREAM:
+                    processStream();
+                    break;
+                case Protocol.TYPE_SELECT_DISPLAY:
+                    processSelectDisplay();
+                    break;
+                case Protocol.TYPE_DISPLAY_INFO:
+                    processDisplayInfo();
+                    break;
+                default:
+                    System.out.println("Ignoring unknown frame type: " + mDecoder.getType());
                     break;
-                } if (ACKNOWLEDGE_IMG_CAN_RECEIVE.equals(new String(buffer, 0, bytes))) {
-                    sendScreenshot();
-                } else {
-                    inputCmd = parseInputCommand(new String(buffer, 0, bytes));
-                    if (inputCmd[0].equals(CMD)) {
-                        processCommand(inputCmd);
-                        mOutputStream.write(ACKNOWLEDGE_CMD_RECEIVED.getBytes());
-                    }
                 }
             }
+            System.out.println("==============APPLICATION ENDED==============");
         } catch (IOException e) {
             e.printStackTrace();
             return;
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            // Closed first, so a stage blocked writing to it stops in time
+            close();
+            if (mPipeline != null) {
+                // Unless the device ended the session, it may reconnect and
+                // resume it
+                if (mSessionEnded)
+                    mPipeline.release();
+                else
+                    FramePipeline.suspend(mPipeline);
+                System.out.println(mConnectedDeviceName + ": link " + mPipeline.getLinkEstimator());
+                System.out.println(mConnectedDeviceName + ": allocated " + mPipeline.getAllocationReport());
+            }
         }
     }
     
-    private void sendScreenshot() {
-        byte[] buffer = new byte[512];
-        int bytes;
-        
+    /*
+     * Close the connection, which makes the blocked read in run() fail and the
+     * session end.
+     */
+    public void close() {
         try {
-            // Send acknowledgment that image will be sent
-            mOutputStream.write(ACKNOWLEDGE_IMG_SENDING.getBytes());
-            
-            // Receive acknowledgment
-            bytes = mInputStream.read(buffer);
-            if (!ACKNOWLEDGE.equals(new String(buffer, 0, bytes)))
-                return;
-            
-            // Send image
-            Thread.sleep(800);
-            BufferedImage bImg = sendSlideScreenshot();
-            ImageIO.write(bImg, "png", mOutputStream);
-            mOutputStream.flush();
-            
-            // Receive acknowledgment that image has been received
-            bytes = mInputStream.read(buffer);
-            if (!ACKNOWLEDGE_IMG_RECEIVED.equals(new String(buffer, 0, bytes)))
-                return;
+            connection.close();
         } catch (IOException e) {
             e.printStackTrace();
+        }
+    }
+
+    /*
+     * Return the live measurements of the link to the device, or null if no
+     * screenshots are sent on this connection.
+     */
+    public LinkEstimator getLinkEstimator() {
+        return mPipeline != null ? mPipeline.getLinkEstimator() : null;
+    }
+
+    /*
+     * The device reported the size of the view screenshots are shown in, so
+     * scale them to exactly that size from now on.
+     */
+    private void processDisplayInfo() throws IOException {
+        int width = mDecoder.getPayloadInt(0);
+        int height = mDecoder.getPayloadInt(4);
+        int densityDpi = mDecoder.getPayloadInt(8);
+        if (mPipeline != null)
+            mPipeline.setTargetSize(width, height);
+
+        System.out.println(mConnectedDeviceName + ": display " + width + "x" + height + " at " + densityDpi + "dpi");
+    }
+
+    /*
+     * The device turned the live preview on or off. While it is on, frames are
+     * pushed as fast as the link and the device can take them.
+     */
+    private void processStream() {
+        boolean streaming = mDecoder.getPayloadByte(0) != 0;
+        if (mPipeline != null)
+            mPipeline.setStreaming(streaming);
+
+        System.out.println(mConnectedDeviceName + ": live preview " + (streaming ? "on" : "off"));
+    }
+
+    /*
+     * The device picked one of the displays to capture. It is remembered for
+     * the current presentation program and a screenshot of it is sent.
+     */
+    private void processSelectDisplay() throws IOException {
+        int index = mDecoder.getPayloadInt(0);
+        Rectangle[] displays = CaptureRegions.getDisplayBounds();
+        if (mScheduler == null || index < 0 || index >= displays.length)
             return;
-        } catch (Exception e) {
-            e.printStackTrace();
+
+        setCaptureBounds(displays[index]);
+        if (mProgram != Protocol.PROGRAM_NONE)
+            mCaptureRegions.remember(mProgram, displays[index]);
+        sendDisplayList();
+        sendScreenshot();
+
+        System.out.println(mConnectedDeviceName + ": capturing display " + (index + 1));
+    }
+
+    /*
+     * Capture what was last picked for the program the device now uses, if
+     * anything was. Commands sent without a program, such as swipes, leave
+     * the current program as it is.
+     * 
+     * @param program one of the Protocol.PROGRAM_ constants
+     */
+    private void processProgram(int program) throws IOException {
+        if (program == Protocol.PROGRAM_NONE || program == mProgram)
             return;
+        mProgram = program;
+
+        Rectangle bounds = mCaptureRegions.recall(program);
+        if (bounds != null && mScheduler != null) {
+            setCaptureBounds(bounds);
+            sendDisplayList();
+        }
+    }
+
+    /*
+     * Capture only this part of the desktop from now on, sharing the captures
+     * with any other connection capturing the same.
+     * 
+     * @param bounds display or region in desktop coordinates
+     */
+    private void setCaptureBounds(Rectangle bounds) {
+        try {
+            mScheduler = CaptureScheduler.forBounds(bounds);
+            if (mPipeline != null)
+                mPipeline.setCaptureScheduler(mScheduler);
+        } catch (AWTException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Tell the device which displays this computer has and which of them is
+     * captured, so the user can pick another one.
+     */
+    private void sendDisplayList() throws IOException {
+        Rectangle[] displays = CaptureRegions.getDisplayBounds();
+        byte[] payload = new byte[Protocol.DISPLAY_LIST_HEADER_LENGTH + displays.length
+                * Protocol.DISPLAY_ENTRY_LENGTH];
+        FrameEncoder.writeInt(payload, 0, displays.length);
+        FrameEncoder.writeInt(payload, 4, CaptureRegions.indexOfDisplay(mScheduler.getBounds()));
+
+        int offset = Protocol.DISPLAY_LIST_HEADER_LENGTH;
+        for (Rectangle display : displays) {
+            FrameEncoder.writeInt(payload, offset, display.x);
+            FrameEncoder.writeInt(payload, offset + 4, display.y);
+            FrameEncoder.writeInt(payload, offset + 8, display.width);
+            FrameEncoder.writeInt(payload, offset + 12, display.height);
+            offset += Protocol.DISPLAY_ENTRY_LENGTH;
         }
+        mEncoder.writeFrame(Protocol.TYPE_DISPLAY_LIST, 0, payload, 0, payload.length);
+    }
+
+    /*
+     * Tell the device whether the session it named goes on, before any
+     * screenshot of this connection is sent.
+     */
+    private void sendSession(boolean resumed) throws IOException {
+        byte[] payload = new byte[Protocol.SESSION_LENGTH];
+        payload[0] = (byte) (resumed ? 1 : 0);
+        mEncoder.writeFrame(Protocol.TYPE_SESSION, 0, payload, 0, payload.length);
+    }
+
+    /*
+     * Cumulatively acknowledge every command processed so far.
+     */
+    private void sendCommandAck() throws IOException {
+        mEncoder.writeFrame(Protocol.TYPE_COMMAND_ACK, mLastCommandSequence);
+        mUnackedCommands = 0;
+    }
+
+    /*
+     * Ask the pipeline for a screenshot once the last key stroke has been
+     * injected. Returns right away, so the next command is read while the
+     * screenshot is captured, encoded and sent.
+     */
+    private void sendScreenshot() {
+        if (mPipeline != null)
+            mPipeline.requestFrame(mLastKeyStroke);
     }
 
     /*
      * Generate the proper key event from the user input on the mobile device.
      * 
-     * @param inputCmd command received from the connected device
+     * @param command one of the Protocol.CMD_ constants
+     * 
+     * @param program one of the Protocol.PROGRAM_ constants
+     * 
+     * @param repeat number of times the device asked for an arrow command
      */
-    private void processCommand(String[] inputCmd) {
-        if (inputCmd[2].equals(KEY_RIGHT)) {
-            processArrowCmd(inputCmd, KeyEvent.VK_RIGHT);
-        } else if (inputCmd[2].equals(KEY_LEFT)) {
-            processArrowCmd(inputCmd, KeyEvent.VK_LEFT);
-        } else if (inputCmd[2].equals(KEY_UP)) {
-            processArrowCmd(inputCmd, KeyEvent.VK_UP);
-        } else if (inputCmd[2].equals(KEY_DOWN)) {
-            processArrowCmd(inputCmd, KeyEvent.VK_DOWN);
-        } else if (inputCmd[2].equals(GO_FULLSCREEN) || inputCmd[2].equals(EXIT_FULLSCREEN)) {
-            handleFullScreenCmd(inputCmd);
-        } else if(inputCmd[2].equals(APP_STARTED)) {
+    private void processCommand(int command, int program, int repeat) {
+        switch (command) {
+        case Protocol.CMD_RIGHT:
+            processArrowCmd(command, KeyEvent.VK_RIGHT, repeat);
+            break;
+        case Protocol.CMD_LEFT:
+            processArrowCmd(command, KeyEvent.VK_LEFT, repeat);
+            break;
+        case Protocol.CMD_UP:
+            processArrowCmd(command, KeyEvent.VK_UP, repeat);
+            break;
+        case Protocol.CMD_DOWN:
+            processArrowCmd(command, KeyEvent.VK_DOWN, repeat);
+            break;
+        case Protocol.CMD_GO_FULLSCREEN:
+        case Protocol.CMD_EXIT_FULLSCREEN:
+            handleFullScreenCmd(command, program);
+            break;
+        case Protocol.CMD_APP_STARTED:
             System.out.println(mConnectedDeviceName + " is in Presentation Mode!!\n");
-        } else if (inputCmd[2].equals(EXIT_CMD)) {
+            break;
+        case Protocol.CMD_EXIT:
             System.out.println("==============APPLICATION ENDED==============");
+            break;
         }
     }
 
     /*
      * Key events for up, down, left, and right arrow.
      * 
-     * @param inputCmd command received from the connected device
+     * @param command command received from the connected device
      * 
      * @param key either VK_UP or VK_DOWN or VK_LEFT or VK_RIGHT constants
+     * 
+     * @param repeat number of key strokes to inject back to back
      */
-    private void processArrowCmd(String[] inputCmd, int key) {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(key);
-            robot.keyRelease(key);
+    private void processArrowCmd(int command, int key, int repeat) {
+        for (int i = 0; i < repeat; i++)
+            injectKeys(key);
+        System.out.println(mConnectedDeviceName + ": " + Protocol.commandName(command)
+                + (repeat > 1 ? " x" + repeat : ""));
+    }
 
-            System.out.println(inputCmd[1] + ": " + inputCmd[2]);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+    /*
+     * Queue a key stroke on the injection thread of this display. Keys are
+     * pressed in the order given and released in reverse order.
+     * 
+     * @param keys KeyEvent.VK_ constants
+     */
+    private void injectKeys(int... keys) {
+        if (mInjector != null)
+            mLastKeyStroke = mInjector.inject(keys);
     }
 
     /*
      * Whenever any fullscreen command has been given generate the proper
      * KeyEvent depending on the program used and the OS.
      * 
-     * @param inputCmd command received from the connected device
+     * @param command either CMD_GO_FULLSCREEN or CMD_EXIT_FULLSCREEN
+     * 
+     * @param program presentation program used on this computer
      */
-    private void handleFullScreenCmd(String[] inputCmd) {
-        if (inputCmd[3].equals(MICROSOFT_POWERPOINT)) {
-            if (inputCmd[2].equals(GO_FULLSCREEN)) {
+    private void handleFullScreenCmd(int command, int program) {
+        if (program == Protocol.PROGRAM_MICRO_PPT) {
+            if (command == Protocol.CMD_GO_FULLSCREEN) {
                 microPPTkeyEventGoFullscreen();
-            } else if (inputCmd[1].equals(EXIT_FULLSCREEN)) {
+            } else if (command == Protocol.CMD_EXIT_FULLSCREEN) {
                 microPPTKeyEventExitFullscreen();
             }
         } else if (mOS.startsWith(WINDOWS)) {
-            if (inputCmd[3].equals(ADOBE_READER)) {
+            if (program == Protocol.PROGRAM_ADOBE_PDF) {
                 adobePDFKeyEventFullscreen(KeyEvent.VK_CONTROL);
-            } else if (inputCmd[3].equals(BROWSER)) {
+            } else if (program == Protocol.PROGRAM_BROWSER) {
                 browserKeyEventWinFullscreen();
             }
         } else if (mOS.startsWith(MAC_OS)) {
-            if (inputCmd[3].equals(ADOBE_READER)) {
+            if (program == Protocol.PROGRAM_ADOBE_PDF) {
                 adobePDFKeyEventFullscreen(KeyEvent.VK_META);
-            } else if (inputCmd[3].equals(BROWSER)) {
+            } else if (program == Protocol.PROGRAM_BROWSER) {
                 browserKeyEventMacFullscreen();
             }
         }
 
-        System.out.println(inputCmd[1] + ": " + inputCmd[2]);
+        System.out.println(mConnectedDeviceName + ": " + Protocol.commandName(command));
     }
 
     /*
      * Key events to make Microsoft Powerpoint presentations go fullscreen.
      */
     private void microPPTkeyEventGoFullscreen() {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(KeyEvent.VK_F5);
-            robot.keyRelease(KeyEvent.VK_F5);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+        injectKeys(KeyEvent.VK_F5);
     }
 
     /*
      * Key events to make Microsoft Powerpoint presentations exit fullscreen.
      */
     private void microPPTKeyEventExitFullscreen() {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(KeyEvent.VK_ESCAPE);
-            robot.keyRelease(KeyEvent.VK_ESCAPE);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+        injectKeys(KeyEvent.VK_ESCAPE);
     }
 
     /*
@@ -240,16 +426,7 @@ public class ProcessInputConnection implements Runnable {
      * @param key either VK_META or VK_CONTROL constants
      */
     private void adobePDFKeyEventFullscreen(int key) {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(key);
-            robot.keyPress(KeyEvent.VK_L);
-            robot.keyRelease(KeyEvent.VK_L);
-            robot.keyRelease(key);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+        injectKeys(key, KeyEvent.VK_L);
     }
 
     /*
@@ -258,14 +435,7 @@ public class ProcessInputConnection implements Runnable {
      * Internet Explorer.
      */
     private void browserKeyEventWinFullscreen() {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(KeyEvent.VK_F11);
-            robot.keyRelease(KeyEvent.VK_F11);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
+        injectKeys(KeyEvent.VK_F11);
     }
 
     /*
@@ -273,41 +443,6 @@ public class ProcessInputConnection implements Runnable {
      * machines. Browsers include Google Chrome, and Mozilla Firefox.
      */
     private void browserKeyEventMacFullscreen() {
-        try {
-            Robot robot = new Robot();
-            robot.keyPress(KeyEvent.VK_META);
-            robot.keyPress(KeyEvent.VK_SHIFT);
-            robot.keyPress(KeyEvent.VK_F);
-            robot.keyRelease(KeyEvent.VK_F);
-            robot.keyRelease(KeyEvent.VK_SHIFT);
-            robot.keyRelease(KeyEvent.VK_META);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
-    }
-
-    /*
-     * Take a screenshot of the screen to be sent to the device.
-     */
-    private BufferedImage sendSlideScreenshot() {
-        try {
-            Robot r = new Robot();
-            Rectangle captureSize = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
-            return r.createScreenCapture(captureSize);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    /*
-     * Split the string between the device name and command received form that
-     * device.
-     * 
-     * @param cmd input command received from the device
-     */
-    private String[] parseInputCommand(String cmd) {
-        return cmd.split(COLON);
+        injectKeys(KeyEvent.VK_META, KeyEvent.VK_SHIFT, KeyEvent.VK_F);
     }
 }
@@ -0,0 +1,41 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+/*
+ * Creates the codecs used for a connection from system properties:
+ * 
+ *   bluetoothremote.codec          png (default), jpeg or rle
+ *   bluetoothremote.png.level      deflate level 0-9, default 4
+ *   bluetoothremote.png.filter     none, sub (default), up, average or paeth
+ *   bluetoothremote.jpeg.quality   0.0-1.0, default 0.8
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    public static FrameCodec createFromConfig() {
+        String codec = System.getProperty("bluetoothremote.codec", "png");
+
+        if ("jpeg".equalsIgnoreCase(codec)) {
+            float quality = Float.parseFloat(System.getProperty("bluetoothremote.jpeg.quality", "0.8"));
+            return new JpegCodec(quality);
+        } else if ("rle".equalsIgnoreCase(codec)) {
+            return new RleCodec();
+        }
+
+        int level = Integer.getInteger("bluetoothremote.png.level", 4);
+        return new PngCodec(level, parseFilter(System.getProperty("bluetoothremote.png.filter", "sub")));
+    }
+
+    private static int parseFilter(String filter) {
+        if ("none".equalsIgnoreCase(filter))
+            return PngCodec.FILTER_NONE;
+        if ("up".equalsIgnoreCase(filter))
+            return PngCodec.FILTER_UP;
+        if ("average".equalsIgnoreCase(filter))
+            return PngCodec.FILTER_AVERAGE;
+        if ("paeth".equalsIgnoreCase(filter))
+            return PngCodec.FILTER_PAETH;
+        return PngCodec.FILTER_SUB;
+    }
+}
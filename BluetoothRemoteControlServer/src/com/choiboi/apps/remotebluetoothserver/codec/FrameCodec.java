@@ -0,0 +1,31 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import java.io.IOException;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.screen.FrameBuffer;
+
+/*
+ * Encodes a region of a screenshot for sending to the device. Each connection
+ * gets its own instances, one for each thread of the TileEncoder, so
+ * implementations keep and reuse their encoder state and scratch buffers
+ * between frames instead of allocating them per frame, and are never called
+ * from two threads at once.
+ */
+public interface FrameCodec {
+
+    /*
+     * Return the Protocol.CODEC_ constant the device uses to pick a decoder.
+     */
+    int getId();
+
+    /*
+     * Append the encoded region of the frame to the buffer.
+     */
+    void encode(FrameBuffer frame, int x, int y, int width, int height, PayloadBuffer out) throws IOException;
+
+    /*
+     * Release any native resources held by the encoder.
+     */
+    void close();
+}
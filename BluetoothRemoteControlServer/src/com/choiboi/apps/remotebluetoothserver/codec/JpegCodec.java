@@ -0,0 +1,63 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.screen.FrameBuffer;
+
+/*
+ * JPEG encoder with a configurable quality. The ImageWriter is looked up once
+ * and reused for every frame of the connection. Regions are picked out of the
+ * frame with a source region on the write parameters and written straight
+ * into the payload buffer, so encoding a region allocates no image or stream.
+ */
+public class JpegCodec implements FrameCodec {
+
+    // Member fields
+    private final ImageWriter mWriter;
+    private final ImageWriteParam mParam;
+    private final PayloadImageOutputStream mStream = new PayloadImageOutputStream();
+    private final Rectangle mRegion = new Rectangle();
+    private IIOImage mImage;
+
+    /*
+     * @param quality 0.0 (smallest) to 1.0 (best)
+     */
+    public JpegCodec(float quality) {
+        mWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        mParam = mWriter.getDefaultWriteParam();
+        mParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        mParam.setCompressionQuality(quality);
+    }
+
+    @Override
+    public int getId() {
+        return Protocol.CODEC_JPEG;
+    }
+
+    @Override
+    public void encode(FrameBuffer frame, int x, int y, int width, int height, PayloadBuffer out)
+            throws IOException {
+        if (mImage == null)
+            mImage = new IIOImage(frame.getImage(), null, null);
+        else
+            mImage.setRenderedImage(frame.getImage());
+        mRegion.setBounds(x, y, width, height);
+        mParam.setSourceRegion(mRegion);
+        mStream.start(out);
+        mWriter.setOutput(mStream);
+        mWriter.write(null, mImage, mParam);
+    }
+
+    @Override
+    public void close() {
+        mWriter.dispose();
+    }
+}
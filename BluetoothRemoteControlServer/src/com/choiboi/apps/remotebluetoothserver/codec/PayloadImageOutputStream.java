@@ -0,0 +1,90 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import java.io.IOException;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+
+/*
+ * ImageOutputStream that writes straight into a PayloadBuffer. Unlike
+ * MemoryCacheImageOutputStream it keeps no cache blocks of its own, so one
+ * instance can be pointed at each region in turn without allocating. Stream
+ * position 0 is where the buffer ended when start() was called, and seeking
+ * back overwrites bytes already written.
+ */
+class PayloadImageOutputStream extends ImageOutputStreamImpl {
+
+    // Member fields
+    private PayloadBuffer mOut;
+    private int mStart;
+
+    /*
+     * Start a new stream at the end of the buffer.
+     */
+    void start(PayloadBuffer out) {
+        mOut = out;
+        mStart = out.size();
+        streamPos = 0;
+        flushedPos = 0;
+        bitOffset = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        int position = mStart + (int) streamPos;
+        if (position == mOut.size())
+            mOut.write(b);
+        else
+            mOut.getBuffer()[position] = (byte) b;
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        int position = mStart + (int) streamPos;
+        int overwrite = Math.min(len, mOut.size() - position);
+        if (overwrite > 0)
+            System.arraycopy(b, off, mOut.getBuffer(), position, overwrite);
+        else
+            overwrite = 0;
+        mOut.write(b, off + overwrite, len - overwrite);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        bitOffset = 0;
+        int position = mStart + (int) streamPos;
+        if (position >= mOut.size())
+            return -1;
+        streamPos++;
+        return mOut.getBuffer()[position] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        bitOffset = 0;
+        int position = mStart + (int) streamPos;
+        int count = Math.min(len, mOut.size() - position);
+        if (count <= 0)
+            return -1;
+        System.arraycopy(mOut.getBuffer(), position, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return mOut.size() - mStart;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos > length())
+            throw new IOException("Cannot seek past the end of the stream");
+        super.seek(pos);
+    }
+}
@@ -0,0 +1,187 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.FrameEncoder;
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.screen.FrameBuffer;
+
+/*
+ * Minimal PNG encoder for 8-bit RGB images. Unlike ImageIO it lets the deflate
+ * level and the row filter be chosen, and it reuses its Deflater and row
+ * buffers for every frame.
+ */
+public class PngCodec implements FrameCodec {
+
+    // Row filter types defined by the PNG specification
+    public static final int FILTER_NONE = 0;
+    public static final int FILTER_SUB = 1;
+    public static final int FILTER_UP = 2;
+    public static final int FILTER_AVERAGE = 3;
+    public static final int FILTER_PAETH = 4;
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    private static final byte[] IHDR = { 'I', 'H', 'D', 'R' };
+    private static final byte[] IDAT = { 'I', 'D', 'A', 'T' };
+    private static final byte[] IEND = { 'I', 'E', 'N', 'D' };
+
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int IDAT_CHUNK_SIZE = 32 * 1024;
+
+    // Member fields
+    private final int mFilter;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[13];
+    private final byte[] mChunk = new byte[IDAT_CHUNK_SIZE];
+    private int mChunkLength;
+    private byte[] mRow = new byte[0];
+    private byte[] mPreviousRow = new byte[0];
+    private byte[] mFiltered = new byte[0];
+
+    /*
+     * @param deflateLevel 0 (fastest) to 9 (smallest)
+     * 
+     * @param filter one of the FILTER_ constants, applied to every row
+     */
+    public PngCodec(int deflateLevel, int filter) {
+        mDeflater = new Deflater(deflateLevel);
+        mFilter = filter;
+    }
+
+    @Override
+    public int getId() {
+        return Protocol.CODEC_PNG;
+    }
+
+    @Override
+    public void encode(FrameBuffer frame, int x, int y, int width, int height, PayloadBuffer out)
+            throws IOException {
+        int rowLength = width * BYTES_PER_PIXEL;
+        if (mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+            mPreviousRow = new byte[rowLength];
+            mFiltered = new byte[rowLength + 1];
+        }
+
+        out.write(SIGNATURE);
+
+        // Header: width, height, bit depth 8, colour type RGB, default
+        // compression, filtering and no interlace
+        FrameEncoder.writeInt(mHeader, 0, width);
+        FrameEncoder.writeInt(mHeader, 4, height);
+        mHeader[8] = 8;
+        mHeader[9] = 2;
+        mHeader[10] = 0;
+        mHeader[11] = 0;
+        mHeader[12] = 0;
+        writeChunk(out, IHDR, mHeader, 13);
+
+        // Image data
+        mDeflater.reset();
+        mChunkLength = 0;
+        Arrays.fill(mPreviousRow, 0, rowLength, (byte) 0);
+        int[] pixels = frame.getPixels();
+        int stride = frame.getWidth();
+        for (int row = 0; row < height; row++) {
+            int offset = (y + row) * stride + x;
+            for (int i = offset, j = 0; i < offset + width; i++) {
+                int pixel = pixels[i];
+                mRow[j++] = (byte) (pixel >> 16);
+                mRow[j++] = (byte) (pixel >> 8);
+                mRow[j++] = (byte) pixel;
+            }
+
+            filterRow(rowLength);
+            mDeflater.setInput(mFiltered, 0, rowLength + 1);
+            while (!mDeflater.needsInput())
+                deflate(out);
+
+            byte[] swap = mPreviousRow;
+            mPreviousRow = mRow;
+            mRow = swap;
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished())
+            deflate(out);
+        if (mChunkLength > 0)
+            writeChunk(out, IDAT, mChunk, mChunkLength);
+
+        writeChunk(out, IEND, mChunk, 0);
+    }
+
+    @Override
+    public void close() {
+        mDeflater.end();
+    }
+
+    /*
+     * Compress into the pending IDAT chunk, writing it out once it is full.
+     */
+    private void deflate(PayloadBuffer out) {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, mChunk.length - mChunkLength);
+        if (mChunkLength == mChunk.length) {
+            writeChunk(out, IDAT, mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    /*
+     * Apply the configured filter to the current row, writing the filter type
+     * followed by the filtered bytes into mFiltered.
+     */
+    private void filterRow(int rowLength) {
+        byte[] raw = mRow;
+        byte[] up = mPreviousRow;
+        byte[] out = mFiltered;
+        out[0] = (byte) mFilter;
+
+        for (int i = 0; i < rowLength; i++) {
+            int a = i >= BYTES_PER_PIXEL ? raw[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int b = up[i] & 0xFF;
+            int c = i >= BYTES_PER_PIXEL ? up[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int value = raw[i] & 0xFF;
+
+            switch (mFilter) {
+            case FILTER_SUB:
+                value -= a;
+                break;
+            case FILTER_UP:
+                value -= b;
+                break;
+            case FILTER_AVERAGE:
+                value -= (a + b) >>> 1;
+                break;
+            case FILTER_PAETH:
+                value -= paeth(a, b, c);
+                break;
+            }
+            out[i + 1] = (byte) value;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    private void writeChunk(PayloadBuffer out, byte[] type, byte[] data, int length) {
+        mCrc.reset();
+        mCrc.update(type, 0, type.length);
+        mCrc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(type, 0, type.length);
+        out.write(data, 0, length);
+        out.writeInt((int) mCrc.getValue());
+    }
+}
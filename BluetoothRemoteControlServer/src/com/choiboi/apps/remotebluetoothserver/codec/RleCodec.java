@@ -0,0 +1,76 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+import com.choiboi.apps.remotebluetoothserver.screen.FrameBuffer;
+
+/*
+ * Run-length encoding of raw RGB pixels, scanned row by row. Costs almost no
+ * CPU on either side, and compresses the large flat areas typical of slides
+ * well. Each run starts with a control byte:
+ * 
+ *   0x80 | (n - 1)   the next pixel repeated n times
+ *   n - 1            n literal pixels follow
+ * 
+ * where n is 1 to 128 and every pixel is 3 bytes of R, G and B.
+ */
+public class RleCodec implements FrameCodec {
+
+    private static final int MAX_RUN = 128;
+
+    // Member fields
+    private int[] mPixels = new int[0];
+
+    @Override
+    public int getId() {
+        return Protocol.CODEC_RLE;
+    }
+
+    @Override
+    public void encode(FrameBuffer frame, int x, int y, int width, int height, PayloadBuffer out) {
+        int count = width * height;
+        if (mPixels.length < count)
+            mPixels = new int[count];
+
+        // Gather the rows of the region so runs can continue across them
+        int stride = frame.getWidth();
+        for (int row = 0; row < height; row++)
+            System.arraycopy(frame.getPixels(), (y + row) * stride + x, mPixels, row * width, width);
+
+        int i = 0;
+        while (i < count) {
+            // Measure the run of identical pixels starting here
+            int run = 1;
+            while (i + run < count && run < MAX_RUN && mPixels[i + run] == mPixels[i])
+                run++;
+
+            if (run > 1) {
+                out.write(0x80 | (run - 1));
+                writePixel(out, mPixels[i]);
+                i += run;
+                continue;
+            }
+
+            // Collect literal pixels until the next repeat begins
+            int literal = 1;
+            while (i + literal < count && literal < MAX_RUN
+                    && (i + literal + 1 >= count || mPixels[i + literal] != mPixels[i + literal + 1]))
+                literal++;
+
+            out.write(literal - 1);
+            for (int j = i; j < i + literal; j++)
+                writePixel(out, mPixels[j]);
+            i += literal;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static void writePixel(PayloadBuffer out, int pixel) {
+        out.write(pixel >> 16);
+        out.write(pixel >> 8);
+        out.write(pixel);
+    }
+}
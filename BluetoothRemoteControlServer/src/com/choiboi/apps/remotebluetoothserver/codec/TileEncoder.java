@@ -0,0 +1,217 @@
+package com.choiboi.apps.remotebluetoothserver.codec;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.PayloadBuffer;
+import com.choiboi.apps.remotebluetoothserver.screen.FrameBuffer;
+
+/*
+ * Encodes the tiles of a frame on every core. Tiles are decoded on their own
+ * by the device, so they can be encoded in any order: each worker takes the
+ * next tile not yet taken, so a worker stuck on a detailed tile never holds
+ * up the rest, and encodes it with its own codec into its own scratch buffer.
+ * The encoded tiles are then appended to the payload in order, each as soon
+ * as it and the tiles before it are done.
+ *
+ * The workers run on a pool shared by every connection, with one thread per
+ * core. Each connection has its own TileEncoder, holding one codec for each
+ * of those threads.
+ */
+public class TileEncoder {
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // Frames with fewer tiles are encoded on the calling thread
+    private static final int MIN_PARALLEL_TILES = 2;
+
+    private static final ExecutorService sPool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "TileEncoder-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Member fields
+    private final FrameCodec[] mCodecs = new FrameCodec[THREADS];
+    private final PayloadBuffer[] mScratch = new PayloadBuffer[THREADS];
+    private final Worker[] mWorkers = new Worker[THREADS];
+    private final AtomicInteger mNextTile = new AtomicInteger();
+    private FrameBuffer mFrame;
+    private List<Rectangle> mTiles;
+    private int mTileCount;
+
+    // Where each encoded tile is, guarded by this
+    private int[] mTileWorker = new int[64];
+    private int[] mTileOffset = new int[64];
+    private int[] mTileLength = new int[64];
+    private boolean[] mTileDone = new boolean[64];
+    private int mActiveWorkers;
+    private Throwable mFailure;
+    private boolean mClosed;
+
+    /*
+     * Create the codecs from the system properties read by Codecs.
+     */
+    public TileEncoder() {
+        for (int i = 0; i < THREADS; i++) {
+            mCodecs[i] = Codecs.createFromConfig();
+            mScratch[i] = new PayloadBuffer(16 * 1024);
+            mWorkers[i] = new Worker(i);
+        }
+    }
+
+    /*
+     * Return the Protocol.CODEC_ constant of the codecs.
+     */
+    public int getId() {
+        return mCodecs[0].getId();
+    }
+
+    /*
+     * Start encoding the tiles. Neither the frame nor the list may change
+     * until every tile has been appended, or if one failed, until awaitIdle()
+     * returns.
+     */
+    public void start(FrameBuffer frame, List<Rectangle> tiles) throws InterruptedException {
+        int workers;
+        synchronized (this) {
+            awaitIdle();
+
+            mFrame = frame;
+            mTiles = tiles;
+            mTileCount = tiles.size();
+            mFailure = null;
+            if (mTileDone.length < mTileCount) {
+                int length = Math.max(mTileCount, mTileDone.length * 2);
+                mTileWorker = new int[length];
+                mTileOffset = new int[length];
+                mTileLength = new int[length];
+                mTileDone = new boolean[length];
+            }
+            for (int i = 0; i < mTileCount; i++)
+                mTileDone[i] = false;
+            for (PayloadBuffer scratch : mScratch)
+                scratch.reset();
+            mNextTile.set(0);
+
+            if (mTileCount < MIN_PARALLEL_TILES)
+                return;
+            workers = Math.min(THREADS, mTileCount);
+            mActiveWorkers = workers;
+        }
+        for (int i = 0; i < workers; i++)
+            sPool.execute(mWorkers[i]);
+    }
+
+    /*
+     * Wait for the workers of the last frame to finish. They may still be
+     * running if it failed, so call this before changing the frame or the
+     * list passed to start().
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (mActiveWorkers > 0)
+            wait();
+    }
+
+    /*
+     * Wait for a tile to be encoded and append it to the payload. Tiles must
+     * be appended in the order they were passed to start().
+     *
+     * @param index position of the tile in the list passed to start()
+     */
+    public void appendTo(int index, PayloadBuffer out) throws IOException, InterruptedException {
+        if (mTileCount < MIN_PARALLEL_TILES) {
+            Rectangle tile = mTiles.get(index);
+            mCodecs[0].encode(mFrame, tile.x, tile.y, tile.width, tile.height, out);
+            return;
+        }
+
+        byte[] encoded;
+        synchronized (this) {
+            while (!mTileDone[index] && mFailure == null)
+                wait();
+            if (mFailure != null)
+                throw new IOException("Could not encode tile", mFailure);
+            encoded = mScratch[mTileWorker[index]].getBuffer();
+        }
+        // The worker only appends after the tile, and growing its buffer
+        // copies it instead of changing it, so the bytes can be read while
+        // the worker goes on with the next tile
+        out.write(encoded, mTileOffset[index], mTileLength[index]);
+    }
+
+    /*
+     * Release the codecs once the last workers have finished.
+     */
+    public void close() {
+        boolean interrupted = false;
+        synchronized (this) {
+            mClosed = true;
+            while (mActiveWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (FrameCodec codec : mCodecs)
+            codec.close();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private class Worker implements Runnable {
+        private final int mmIndex;
+
+        Worker(int index) {
+            mmIndex = index;
+        }
+
+        @Override
+        public void run() {
+            FrameCodec codec = mCodecs[mmIndex];
+            PayloadBuffer scratch = mScratch[mmIndex];
+            try {
+                while (true) {
+                    int index = mNextTile.getAndIncrement();
+                    synchronized (TileEncoder.this) {
+                        if (index >= mTileCount || mFailure != null || mClosed)
+                            return;
+                    }
+
+                    Rectangle tile = mTiles.get(index);
+                    int offset = scratch.size();
+                    codec.encode(mFrame, tile.x, tile.y, tile.width, tile.height, scratch);
+                    synchronized (TileEncoder.this) {
+                        mTileWorker[index] = mmIndex;
+                        mTileOffset[index] = offset;
+                        mTileLength[index] = scratch.size() - offset;
+                        mTileDone[index] = true;
+                        TileEncoder.this.notifyAll();
+                    }
+                }
+            } catch (Throwable e) {
+                // Handed to the calling thread, which waits for the tile
+                synchronized (TileEncoder.this) {
+                    mFailure = e;
+                }
+            } finally {
+                synchronized (TileEncoder.this) {
+                    mActiveWorkers--;
+                    TileEncoder.this.notifyAll();
+                }
+            }
+        }
+    }
+}
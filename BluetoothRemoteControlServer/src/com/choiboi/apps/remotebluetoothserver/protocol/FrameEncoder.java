@@ -0,0 +1,157 @@
+package com.choiboi.apps.remotebluetoothserver.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/*
+ * Writes frames to a stream. Writes are synchronized so that frames sent from
+ * different threads are never interleaved, and the header buffer is reused so
+ * that sending a frame does not allocate.
+ * 
+ * Frames written with writeBulkFrame() are split into numbered and
+ * checksummed fragments, and frames written meanwhile by other threads are
+ * let through ahead of the next fragment.
+ */
+public class FrameEncoder {
+
+    // Member fields
+    private final OutputStream mOutputStream;
+    private final byte[] mHeader = new byte[Protocol.HEADER_LENGTH];
+    private final byte[] mSmallPayload = new byte[8];
+
+    // Frames waiting to go ahead of the next fragment of a bulk frame
+    private final AtomicInteger mWaitingFrames = new AtomicInteger();
+
+    // Only used by the thread writing bulk frames
+    private final byte[] mFragmentHeader = new byte[Protocol.FRAGMENT_HEADER_LENGTH];
+    private final CRC32 mChecksum = new CRC32();
+
+    public FrameEncoder(OutputStream out) {
+        mOutputStream = new BufferedOutputStream(out, 8192);
+    }
+
+    /*
+     * Write a frame without a payload.
+     */
+    public void writeFrame(int type, int sequence) throws IOException {
+        writeFrame(type, sequence, null, 0, 0);
+    }
+
+    /*
+     * Write a frame whose payload is the given bytes.
+     * 
+     * @param payload payload bytes, may be null if length is 0
+     */
+    public void writeFrame(int type, int sequence, byte[] payload, int offset, int length) throws IOException {
+        mWaitingFrames.incrementAndGet();
+        try {
+            synchronized (this) {
+                write(type, sequence, payload, offset, length);
+            }
+        } finally {
+            frameWritten();
+        }
+    }
+
+    /*
+     * Write a frame with a three byte payload without allocating.
+     */
+    public void writeFrame(int type, int sequence, int first, int second, int third) throws IOException {
+        mWaitingFrames.incrementAndGet();
+        try {
+            synchronized (this) {
+                mSmallPayload[0] = (byte) first;
+                mSmallPayload[1] = (byte) second;
+                mSmallPayload[2] = (byte) third;
+                write(type, sequence, mSmallPayload, 0, 3);
+            }
+        } finally {
+            frameWritten();
+        }
+    }
+
+    /*
+     * Write a frame on the bulk channel, in chunks of at most
+     * Protocol.FRAGMENT_LENGTH bytes each sent as a fragment. Before each
+     * fragment, any frame another thread is waiting to write goes first. Only
+     * one thread may write bulk frames.
+     * 
+     * @param payload payload bytes, may be null if length is 0
+     * 
+     * @param firstChunk index of the chunk to start from, 0 unless the device
+     * asked for the rest of a damaged frame
+     * 
+     * @return number of bytes written, frame and fragment headers included
+     */
+    public int writeBulkFrame(int type, int sequence, byte[] payload, int offset, int length, int firstChunk)
+            throws IOException, InterruptedException {
+        int chunks = Math.max(1, (length + Protocol.FRAGMENT_LENGTH - 1) / Protocol.FRAGMENT_LENGTH);
+        int written = 0;
+        for (int chunk = firstChunk; chunk < chunks; chunk++) {
+            int start = chunk * Protocol.FRAGMENT_LENGTH;
+            int fragment = Math.min(Protocol.FRAGMENT_LENGTH, length - start);
+            mChecksum.reset();
+            if (fragment > 0)
+                mChecksum.update(payload, offset + start, fragment);
+
+            synchronized (this) {
+                while (mWaitingFrames.get() > 0)
+                    wait();
+                writeInt(mFragmentHeader, 0, chunk);
+                writeInt(mFragmentHeader, 4, length);
+                writeInt(mFragmentHeader, 8, (int) mChecksum.getValue());
+                write(type | Protocol.FLAG_FRAGMENT, sequence, mFragmentHeader, payload, offset + start, fragment);
+            }
+            written += Protocol.HEADER_LENGTH + Protocol.FRAGMENT_HEADER_LENGTH + fragment;
+        }
+        return written;
+    }
+
+    public void close() throws IOException {
+        mOutputStream.close();
+    }
+
+    private void write(int type, int sequence, byte[] payload, int offset, int length) throws IOException {
+        write(type, sequence, null, payload, offset, length);
+    }
+
+    /*
+     * Write one frame, its payload made of a prefix, if any, and the given
+     * bytes.
+     */
+    private void write(int type, int sequence, byte[] prefix, byte[] payload, int offset, int length)
+            throws IOException {
+        int prefixLength = prefix != null ? prefix.length : 0;
+        mHeader[0] = (byte) Protocol.VERSION;
+        mHeader[1] = (byte) type;
+        writeInt(mHeader, 2, sequence);
+        writeInt(mHeader, 6, prefixLength + length);
+
+        mOutputStream.write(mHeader, 0, Protocol.HEADER_LENGTH);
+        if (prefixLength > 0)
+            mOutputStream.write(prefix, 0, prefixLength);
+        if (length > 0)
+            mOutputStream.write(payload, offset, length);
+        mOutputStream.flush();
+    }
+
+    /*
+     * Wake a bulk frame waiting for this frame to be written.
+     */
+    private void frameWritten() {
+        mWaitingFrames.decrementAndGet();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
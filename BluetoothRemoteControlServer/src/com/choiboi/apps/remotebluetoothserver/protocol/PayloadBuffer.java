@@ -0,0 +1,71 @@
+package com.choiboi.apps.remotebluetoothserver.protocol;
+
+import java.io.ByteArrayOutputStream;
+
+/*
+ * ByteArrayOutputStream that exposes its backing array so an encoded payload
+ * can be handed to FrameEncoder without the copy made by toByteArray(). Call
+ * reset() before reusing it for the next payload. The type and sequence
+ * number of the frame the payload is for travel with it.
+ */
+public class PayloadBuffer extends ByteArrayOutputStream {
+
+    // Member fields
+    private int mFrameType;
+    private int mSequence;
+
+    public PayloadBuffer(int size) {
+        super(size);
+    }
+
+    /*
+     * @param type one of the Protocol.TYPE_ constants
+     */
+    public void setFrameType(int type) {
+        mFrameType = type;
+    }
+
+    public int getFrameType() {
+        return mFrameType;
+    }
+
+    public void setSequence(int sequence) {
+        mSequence = sequence;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /*
+     * Append a big-endian int.
+     */
+    public void writeInt(int value) {
+        write(value >>> 24);
+        write(value >>> 16);
+        write(value >>> 8);
+        write(value);
+    }
+
+    /*
+     * Append a big-endian long.
+     */
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /*
+     * Overwrite a big-endian int written earlier, such as a length that is
+     * only known once the data after it has been written.
+     * 
+     * @param offset position of the int in the buffer
+     */
+    public synchronized void setInt(int offset, int value) {
+        FrameEncoder.writeInt(buf, offset, value);
+    }
+}
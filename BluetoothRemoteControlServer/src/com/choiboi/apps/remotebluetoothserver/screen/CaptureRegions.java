@@ -0,0 +1,116 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.util.prefs.Preferences;
+
+/*
+ * Decides which part of the desktop is captured. By default that is the
+ * primary display, which can be overridden with system properties:
+ *
+ *   bluetoothremote.capture.display   index of the display to capture
+ *   bluetoothremote.capture.region    fixed region as x,y,width,height
+ *
+ * The device may also pick one of the displays, and the bounds picked are
+ * remembered per presentation program in the user preferences so that they
+ * are used again the next time that program is selected.
+ */
+public class CaptureRegions {
+
+    // Keys of the remembered bounds in the user preferences
+    private static final String PREF_PROGRAM_BOUNDS = "bounds.program.";
+
+    // Member fields
+    private final Preferences mPreferences = Preferences.userNodeForPackage(CaptureRegions.class);
+
+    /*
+     * Return the bounds of every display in desktop coordinates, in the order
+     * the graphics environment lists them.
+     */
+    public static Rectangle[] getDisplayBounds() {
+        GraphicsDevice[] devices;
+        try {
+            devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        } catch (HeadlessException e) {
+            return new Rectangle[0];
+        }
+
+        Rectangle[] bounds = new Rectangle[devices.length];
+        for (int i = 0; i < devices.length; i++)
+            bounds[i] = devices[i].getDefaultConfiguration().getBounds();
+        return bounds;
+    }
+
+    /*
+     * Return the bounds to capture when nothing has been picked for the
+     * current program: the configured region or display, or else the primary
+     * display.
+     */
+    public static Rectangle getConfiguredBounds() {
+        Rectangle region = parse(System.getProperty("bluetoothremote.capture.region"));
+        if (region != null)
+            return region;
+
+        Rectangle[] displays = getDisplayBounds();
+        int display = Integer.getInteger("bluetoothremote.capture.display", -1);
+        if (display >= 0 && display < displays.length)
+            return displays[display];
+
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .getBounds();
+    }
+
+    /*
+     * Return the index of the display with exactly these bounds, or -1 if the
+     * bounds are a custom region.
+     */
+    public static int indexOfDisplay(Rectangle bounds) {
+        Rectangle[] displays = getDisplayBounds();
+        for (int i = 0; i < displays.length; i++) {
+            if (displays[i].equals(bounds))
+                return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Return the bounds last picked for the program, or null if none were.
+     *
+     * @param program one of the Protocol.PROGRAM_ constants
+     */
+    public Rectangle recall(int program) {
+        return parse(mPreferences.get(PREF_PROGRAM_BOUNDS + program, null));
+    }
+
+    /*
+     * Remember the bounds picked for the program.
+     *
+     * @param program one of the Protocol.PROGRAM_ constants
+     */
+    public void remember(int program, Rectangle bounds) {
+        mPreferences.put(PREF_PROGRAM_BOUNDS + program, bounds.x + "," + bounds.y + "," + bounds.width + ","
+                + bounds.height);
+    }
+
+    /*
+     * Parse bounds written as x,y,width,height. Returns null if the text is
+     * missing or malformed.
+     */
+    static Rectangle parse(String text) {
+        if (text == null)
+            return null;
+
+        String[] parts = text.split(",");
+        if (parts.length != 4)
+            return null;
+        try {
+            Rectangle bounds = new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+            return bounds.isEmpty() ? null : bounds;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Shares the screenshots of one display or region between every connection
+ * capturing it. Requests are debounced on the trailing edge: the capture only
+ * starts once no new request has arrived for the quiet period, and one capture
+ * answers every request made before it started. A request made while a
+ * capture is already running waits for the next one, so each connection gets
+ * the latest screen and no capture is spent on a frame already stale.
+ *
+ * The quiet period can be set with the bluetoothremote.capture.quietPeriodMs
+ * system property. A steady stream of requests cannot hold a capture back for
+ * longer than MAX_DELAY_MS.
+ */
+public class CaptureScheduler {
+
+    private static final int QUIET_PERIOD_MS = Integer.getInteger("bluetoothremote.capture.quietPeriodMs", 30);
+    private static final int MAX_DELAY_MS = 200;
+
+    // One scheduler for each display or region captured, created on demand
+    private static final Map<Rectangle, CaptureScheduler> sSchedulers = new HashMap<Rectangle, CaptureScheduler>();
+
+    // Member fields
+    private final ScreenCapturer mCapturer;
+    private int mRequested;
+    private int mAnswered;
+    private long mFirstRequestAt;
+    private long mLastRequestAt;
+    private boolean mWaitUntilStable;
+    private boolean mCapturing;
+    private BufferedImage mLatest;
+
+    private CaptureScheduler(Rectangle bounds) throws AWTException {
+        mCapturer = new ScreenCapturer(bounds);
+    }
+
+    /*
+     * Return the scheduler shared by every connection capturing these bounds.
+     *
+     * @param bounds display or region in desktop coordinates
+     */
+    public static CaptureScheduler forBounds(Rectangle bounds) throws AWTException {
+        synchronized (sSchedulers) {
+            CaptureScheduler scheduler = sSchedulers.get(bounds);
+            if (scheduler == null) {
+                scheduler = new CaptureScheduler(bounds);
+                sSchedulers.put(new Rectangle(bounds), scheduler);
+            }
+            return scheduler;
+        }
+    }
+
+    public Rectangle getBounds() {
+        return mCapturer.getBounds();
+    }
+
+    /*
+     * Block until a capture started after this call has finished and return
+     * it. The image is shared with the other connections and must not be
+     * changed. The first caller to find no capture running takes it on its
+     * own thread once the requests have gone quiet, the others wait for it.
+     *
+     * @param waitUntilStable true to wait for the screen to settle, which is
+     * done if any of the requests answered by the capture asked for it
+     */
+    public BufferedImage capture(boolean waitUntilStable) throws InterruptedException {
+        int ticket;
+        int answers;
+        boolean stable;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (mRequested == mAnswered)
+                mFirstRequestAt = now;
+            mLastRequestAt = now;
+            mWaitUntilStable |= waitUntilStable;
+            ticket = ++mRequested;
+            notifyAll();
+
+            while (mAnswered - ticket < 0) {
+                if (!mCapturing)
+                    break;
+                wait();
+            }
+            if (mAnswered - ticket >= 0)
+                return mLatest;
+
+            // Wait for the requests to go quiet
+            mCapturing = true;
+            try {
+                while (true) {
+                    now = System.currentTimeMillis();
+                    long start = Math.min(mLastRequestAt + QUIET_PERIOD_MS, mFirstRequestAt + MAX_DELAY_MS);
+                    if (now >= start)
+                        break;
+                    wait(start - now);
+                }
+            } catch (InterruptedException e) {
+                mCapturing = false;
+                notifyAll();
+                throw e;
+            }
+            answers = mRequested;
+            stable = mWaitUntilStable;
+            mWaitUntilStable = false;
+        }
+
+        BufferedImage capture = null;
+        try {
+            capture = stable ? mCapturer.captureWhenStable() : mCapturer.capture();
+            return capture;
+        } finally {
+            synchronized (this) {
+                if (capture != null) {
+                    mLatest = capture;
+                    mAnswered = answers;
+                    if (mRequested != mAnswered)
+                        mFirstRequestAt = System.currentTimeMillis();
+                }
+                mCapturing = false;
+                notifyAll();
+            }
+        }
+    }
+}
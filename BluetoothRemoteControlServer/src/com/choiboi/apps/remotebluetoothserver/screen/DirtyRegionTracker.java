@@ -0,0 +1,145 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+
+/*
+ * Remembers the last frame sent to a device and works out which parts of the
+ * next frame differ from it. The screen is split into fixed square tiles of
+ * Protocol.TILE_SIZE pixels, the tiles at the right and bottom edges being
+ * smaller, and every tile that differs is reported along with a hash of its
+ * content so the device can cache it.
+ * 
+ * Frames are copied into two FrameBuffers that swap roles on every commit, so
+ * the new frame is compared with the previous one in place and no pixel
+ * memory is allocated while the frame size stays the same.
+ */
+public class DirtyRegionTracker {
+
+    // Member fields
+    private FrameBuffer mPrevious = new FrameBuffer();
+    private FrameBuffer mCurrent = new FrameBuffer();
+    private int mWidth;
+    private int mHeight;
+    private boolean mHasPrevious;
+    private final List<Rectangle> mTiles = new ArrayList<Rectangle>();
+    private final List<Rectangle> mFreeTiles = new ArrayList<Rectangle>();
+
+    /*
+     * Copy the pixels of the frame about to be sent and return a hash of its
+     * content. If the hash shows the frame is unchanged, it can simply not be
+     * committed and the previous frame stays the reference.
+     * 
+     * @param frame the frame about to be sent
+     */
+    public long load(BufferedImage frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mHasPrevious = false;
+        }
+        mCurrent.copyFrom(frame);
+
+        return hash(mCurrent.getPixels(), 0, width, width, height);
+    }
+
+    /*
+     * Compare the frame passed to load() with the last committed one and
+     * return the tiles that changed, or every tile if there is no previous
+     * frame or the size changed. The loaded frame becomes the reference for
+     * the next call, and tileHash() then hashes its tiles. The returned list
+     * and rectangles are reused by the next call.
+     */
+    public List<Rectangle> commit() {
+        mFreeTiles.addAll(mTiles);
+        mTiles.clear();
+
+        for (int ty = 0; ty < mHeight; ty += Protocol.TILE_SIZE) {
+            int tileHeight = Math.min(Protocol.TILE_SIZE, mHeight - ty);
+            for (int tx = 0; tx < mWidth; tx += Protocol.TILE_SIZE) {
+                int tileWidth = Math.min(Protocol.TILE_SIZE, mWidth - tx);
+                if (!mHasPrevious || isTileDirty(tx, ty, tileWidth, tileHeight))
+                    mTiles.add(obtainTile(tx, ty, tileWidth, tileHeight));
+            }
+        }
+
+        // Keep this frame as the reference for the next one
+        FrameBuffer swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        mHasPrevious = true;
+        return mTiles;
+    }
+
+    /*
+     * Return the content hash of a tile of the last committed frame. Equal
+     * tiles give equal hashes wherever they are on the screen.
+     */
+    public long tileHash(Rectangle tile) {
+        return hash(mPrevious.getPixels(), tile.y * mWidth + tile.x, mWidth, tile.width, tile.height);
+    }
+
+    /*
+     * Return the last committed frame, which the tiles returned by commit()
+     * are cut from.
+     */
+    public FrameBuffer getFrame() {
+        return mPrevious;
+    }
+
+    /*
+     * Forget the previous frame so the next commit returns the whole frame.
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    private boolean isTileDirty(int x, int y, int width, int height) {
+        int[] current = mCurrent.getPixels();
+        int[] previous = mPrevious.getPixels();
+        for (int row = y; row < y + height; row++) {
+            int offset = row * mWidth + x;
+            for (int i = offset; i < offset + width; i++) {
+                if (current[i] != previous[i])
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private Rectangle obtainTile(int x, int y, int width, int height) {
+        Rectangle tile = mFreeTiles.isEmpty() ? new Rectangle() : mFreeTiles.remove(mFreeTiles.size() - 1);
+        tile.setBounds(x, y, width, height);
+        return tile;
+    }
+
+    /*
+     * 64-bit FNV-1a over the size and the pixels of a rectangle.
+     */
+    private static long hash(int[] pixels, int offset, int stride, int width, int height) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ width) * 0x100000001b3L;
+        hash = (hash ^ height) * 0x100000001b3L;
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            for (int i = start; i < start + width; i++)
+                hash = (hash ^ pixels[i]) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,104 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/*
+ * Reusable pixels of one frame, stored as opaque ARGB ints row by row with a
+ * stride of the frame width. The array is only reallocated when the frame
+ * size changes, so a connection copies every frame into the same memory.
+ * Codecs read the pixels straight from the array, and those that need an
+ * image get a BufferedImage backed by the same array rather than a copy.
+ */
+public class FrameBuffer {
+
+    private static final int OPAQUE = 0xFF000000;
+
+    // Member fields
+    private int[] mPixels = new int[0];
+    private int mWidth;
+    private int mHeight;
+    private BufferedImage mImage;
+
+    /*
+     * Copy the pixels of the image into this buffer, resizing it if needed.
+     * Images backed by packed ints, which Robot and the scaler produce, are
+     * copied row by row from their data buffer, avoiding the per pixel colour
+     * conversion of getRGB().
+     */
+    public void copyFrom(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        setSize(width, height);
+
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+            int[] data = dataBuffer.getData();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int start = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                    - raster.getSampleModelTranslateX();
+
+            // The alpha byte of TYPE_INT_RGB is undefined, so force it opaque
+            for (int row = 0; row < height; row++) {
+                int from = start + row * stride;
+                int to = row * width;
+                for (int i = 0; i < width; i++)
+                    mPixels[to + i] = data[from + i] | OPAQUE;
+            }
+        } else {
+            image.getRGB(0, 0, width, height, mPixels, 0, width);
+        }
+    }
+
+    /*
+     * Return the pixels. Only the first getWidth() * getHeight() are valid.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /*
+     * Return an image sharing the pixels of this buffer, so changes to either
+     * show in the other. The same image is returned until the size changes.
+     * Synchronized, as the TileEncoder workers ask for it at the same time.
+     */
+    public synchronized BufferedImage getImage() {
+        if (mImage == null) {
+            DirectColorModel colorModel = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+            DataBuffer dataBuffer = new DataBufferInt(mPixels, mWidth * mHeight);
+            WritableRaster raster = Raster.createPackedRaster(dataBuffer, mWidth, mHeight, mWidth,
+                    colorModel.getMasks(), new Point(0, 0));
+            mImage = new BufferedImage(colorModel, raster, false, null);
+        }
+        return mImage;
+    }
+
+    private synchronized void setSize(int width, int height) {
+        if (width == mWidth && height == mHeight)
+            return;
+
+        mWidth = width;
+        mHeight = height;
+        if (mPixels.length < width * height)
+            mPixels = new int[width * height];
+        mImage = null;
+    }
+}
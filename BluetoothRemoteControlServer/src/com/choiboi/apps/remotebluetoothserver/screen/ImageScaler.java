@@ -0,0 +1,82 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Scales screenshots down to the size of the view on the device before they
+ * are encoded. Large reductions are done in successive halving steps with
+ * bilinear filtering, which keeps text readable where a single step would
+ * drop most of the source pixels. Intermediate and target images are kept
+ * and reused while the sizes stay the same.
+ */
+public class ImageScaler {
+
+    // Member fields
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private final List<BufferedImage> mSteps = new ArrayList<BufferedImage>();
+
+    /*
+     * Set the size of the view the image is displayed in. A size of zero
+     * disables scaling.
+     */
+    public synchronized void setTargetSize(int maxWidth, int maxHeight) {
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+    }
+
+    /*
+     * Return the image scaled to fit the target size while keeping its aspect
+     * ratio, or the image itself if it already fits. The returned image is
+     * reused by the next call.
+     */
+    public synchronized BufferedImage scale(BufferedImage source) {
+        if (mMaxWidth <= 0 || mMaxHeight <= 0)
+            return source;
+
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        double ratio = Math.min((double) mMaxWidth / sourceWidth, (double) mMaxHeight / sourceHeight);
+        if (ratio >= 1.0)
+            return source;
+
+        int targetWidth = Math.max(1, (int) Math.round(sourceWidth * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(sourceHeight * ratio));
+
+        BufferedImage current = source;
+        int width = sourceWidth;
+        int height = sourceHeight;
+        int step = 0;
+        do {
+            // Halve until one more halving would overshoot, then finish
+            width = width / 2 > targetWidth ? width / 2 : targetWidth;
+            height = height / 2 > targetHeight ? height / 2 : targetHeight;
+
+            BufferedImage next = stepImage(step++, width, height);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+
+        return current;
+    }
+
+    private BufferedImage stepImage(int step, int width, int height) {
+        BufferedImage image = step < mSteps.size() ? mSteps.get(step) : null;
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            if (step < mSteps.size())
+                mSteps.set(step, image);
+            else
+                mSteps.add(image);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,124 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+
+/*
+ * Takes screenshots with a single long-lived Robot. Rather than sleeping for a
+ * fixed time after a key stroke, captureWhenStable() keeps sampling the screen
+ * and takes the screenshot as soon as two consecutive samples match, so
+ * static slides are captured almost immediately and animated transitions once
+ * they settle. A sample only captures a few small probes spread over the
+ * screen, so the whole screen is captured once per screenshot rather than
+ * once per sample. Only the display or region given to the constructor is
+ * captured, and connections share it through a CaptureScheduler.
+ */
+public class ScreenCapturer {
+
+    // Stabilization settings, overridable with system properties
+    private static final int SAMPLE_INTERVAL_MS = Integer.getInteger("bluetoothremote.capture.sampleIntervalMs", 40);
+    private static final int MAX_SETTLE_MS = Integer.getInteger("bluetoothremote.capture.maxSettleMs", 1500);
+    private static final int UNCHANGED_GRACE_MS = Integer.getInteger("bluetoothremote.capture.unchangedGraceMs", 250);
+
+    // A sample is a grid of PROBES_ACROSS by PROBES_DOWN squares of
+    // PROBE_SIZE pixels, each centred in its cell of the captured area
+    private static final int PROBES_ACROSS = 4;
+    private static final int PROBES_DOWN = 3;
+    private static final int PROBE_SIZE = 32;
+
+    // Member fields
+    private final Robot mRobot;
+    private final Rectangle mBounds;
+    private final Rectangle[] mProbes;
+    private final int[] mProbePixels = new int[PROBE_SIZE * PROBE_SIZE];
+    private long mLastSignature;
+
+    /*
+     * @param bounds display or region to capture in desktop coordinates
+     */
+    public ScreenCapturer(Rectangle bounds) throws AWTException {
+        mRobot = new Robot();
+        mBounds = new Rectangle(bounds);
+        mProbes = layoutProbes(mBounds);
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(mBounds);
+    }
+
+    /*
+     * Capture the screen right away.
+     */
+    public BufferedImage capture() {
+        return mRobot.createScreenCapture(mBounds);
+    }
+
+    /*
+     * Capture the screen once it has stopped changing. The screen is
+     * considered stable when the signature of a sample matches the previous
+     * one. While the screen still looks like the last frame returned, the
+     * program may not have reacted to the key stroke yet, so that case is only
+     * accepted after a short grace period. Gives up and captures the screen as
+     * it is after the configured ceiling.
+     */
+    public BufferedImage captureWhenStable() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long signature = sampleSignature();
+
+        while (true) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed >= MAX_SETTLE_MS)
+                break;
+
+            Thread.sleep(SAMPLE_INTERVAL_MS);
+            long nextSignature = sampleSignature();
+            boolean stable = nextSignature == signature;
+            signature = nextSignature;
+
+            if (stable && (signature != mLastSignature || elapsed >= UNCHANGED_GRACE_MS))
+                break;
+        }
+
+        mLastSignature = signature;
+        return capture();
+    }
+
+    /*
+     * Capture the probes and compute a cheap signature of their pixels.
+     */
+    private long sampleSignature() {
+        long hash = 0xcbf29ce484222325L;
+        for (Rectangle probe : mProbes) {
+            BufferedImage image = mRobot.createScreenCapture(probe);
+            image.getRGB(0, 0, probe.width, probe.height, mProbePixels, 0, probe.width);
+            int count = probe.width * probe.height;
+            for (int i = 0; i < count; i++) {
+                hash ^= mProbePixels[i];
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /*
+     * Place the probes on an even grid over the captured area, kept inside it
+     * when the area is smaller than the grid.
+     */
+    private static Rectangle[] layoutProbes(Rectangle bounds) {
+        int width = Math.max(1, Math.min(PROBE_SIZE, bounds.width));
+        int height = Math.max(1, Math.min(PROBE_SIZE, bounds.height));
+        Rectangle[] probes = new Rectangle[PROBES_ACROSS * PROBES_DOWN];
+        for (int row = 0; row < PROBES_DOWN; row++) {
+            for (int column = 0; column < PROBES_ACROSS; column++) {
+                int x = bounds.x + bounds.width * (2 * column + 1) / (2 * PROBES_ACROSS) - width / 2;
+                int y = bounds.y + bounds.height * (2 * row + 1) / (2 * PROBES_DOWN) - height / 2;
+                x = Math.max(bounds.x, Math.min(x, bounds.x + bounds.width - width));
+                y = Math.max(bounds.y, Math.min(y, bounds.y + bounds.height - height));
+                probes[row * PROBES_ACROSS + column] = new Rectangle(x, y, width, height);
+            }
+        }
+        return probes;
+    }
+}
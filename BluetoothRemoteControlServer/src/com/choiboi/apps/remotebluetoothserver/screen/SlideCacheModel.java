@@ -0,0 +1,50 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Slides the device is expected to hold in its slide cache. Unlike the tile
+ * cache, the device evicts slides by memory and disk budget, which the server
+ * cannot mirror, so this is only a guess: the most recently used slides sent
+ * with their pixels, up to a bound. A wrong guess costs one TYPE_SLIDE_MISS
+ * round trip, after which the slide is forgotten and sent again in full.
+ *
+ * The encode stage reads and updates the model while the thread reading from
+ * the device reports misses, so every method is synchronized.
+ */
+public class SlideCacheModel {
+
+    // Most slides remembered, comfortably more than the device keeps in memory
+    private static final int CAPACITY = 64;
+
+    // Member fields
+    private final Map<Long, Boolean> mSlides = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    /*
+     * Return true if the device is expected to hold the slide, marking it as
+     * recently used.
+     */
+    public synchronized boolean touch(long hash) {
+        return mSlides.get(hash) != null;
+    }
+
+    /*
+     * Record that the slide has been sent with its pixels.
+     */
+    public synchronized void add(long hash) {
+        mSlides.put(hash, Boolean.TRUE);
+    }
+
+    /*
+     * Forget a slide the device reported missing.
+     */
+    public synchronized void remove(long hash) {
+        mSlides.remove(hash);
+    }
+}
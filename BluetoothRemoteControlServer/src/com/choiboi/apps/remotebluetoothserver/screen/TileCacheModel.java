@@ -0,0 +1,45 @@
+package com.choiboi.apps.remotebluetoothserver.screen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.choiboi.apps.remotebluetoothserver.protocol.Protocol;
+
+/*
+ * Mirror of the tile cache kept by the device. Both sides use a least recently
+ * used map of Protocol.TILE_CACHE_CAPACITY entries and apply the same
+ * operations in the same order (add for every tile sent with its pixels, touch
+ * for every tile sent as a reference), so the server always knows exactly
+ * which tiles the device holds without any extra messages.
+ */
+public class TileCacheModel {
+
+    // Member fields
+    private final Map<Long, Boolean> mTiles = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > Protocol.TILE_CACHE_CAPACITY;
+        }
+    };
+
+    /*
+     * Return true if the device holds the tile, marking it as recently used.
+     */
+    public boolean touch(long hash) {
+        return mTiles.get(hash) != null;
+    }
+
+    /*
+     * Record that the tile has been sent with its pixels.
+     */
+    public void add(long hash) {
+        mTiles.put(hash, Boolean.TRUE);
+    }
+
+    /*
+     * Forget every tile, for when the device starts over with an empty cache.
+     */
+    public void clear() {
+        mTiles.clear();
+    }
+}
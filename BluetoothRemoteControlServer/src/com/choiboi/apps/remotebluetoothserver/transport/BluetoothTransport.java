@@ -0,0 +1,83 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.UUID;
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+import javax.microedition.io.StreamConnectionNotifier;
+
+/*
+ * RFCOMM transport using BlueCove. Advertises the application UUID as a serial
+ * port service and accepts connections from the Android application.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String BLUETOOTH_EXCEPTION = "Bluetooth on this device cannot be changed!!";
+    private static final String LOCAL_DEVICE_NAME = "Name of this Device: ";
+    private static final String LOCAL_DEVICE_ADDRESS = "Bluetooth Address of this Device: ";
+
+    private static final String _UUID = "C46C11A93E424F64AB1EFC892E87B9DE"; // C46C11A9-3E42-4F64-AB1E-FC892E87B9DE
+
+    // Member fields
+    private StreamConnectionNotifier mStreamConnNotifier;
+
+    @Override
+    public void open() throws IOException {
+        // Set local Bluetooth to be generally discoverable.
+        LocalDevice localDevice = LocalDevice.getLocalDevice();
+        try {
+            localDevice.setDiscoverable(DiscoveryAgent.GIAC);
+        } catch (BluetoothStateException e) {
+            System.out.println(BLUETOOTH_EXCEPTION);
+            e.printStackTrace();
+        }
+        System.out.println(LOCAL_DEVICE_NAME + localDevice.getFriendlyName());
+        System.out.println(LOCAL_DEVICE_ADDRESS + localDevice.getBluetoothAddress());
+
+        // Create UUID for SPP and service URL
+        UUID uuid = new UUID(_UUID, false);
+        String connectionURL = "btspp://localhost:" + uuid + ";name=BluetoothRemoteApp";
+
+        // Open server URL
+        mStreamConnNotifier = (StreamConnectionNotifier) Connector.open(connectionURL);
+    }
+
+    @Override
+    public TransportConnection accept() throws IOException {
+        final StreamConnection connection = mStreamConnNotifier.acceptAndOpen();
+
+        return new TransportConnection() {
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return connection.openInputStream();
+            }
+
+            @Override
+            public OutputStream openOutputStream() throws IOException {
+                return connection.openOutputStream();
+            }
+
+            @Override
+            public void close() throws IOException {
+                connection.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mStreamConnNotifier != null)
+            mStreamConnNotifier.close();
+    }
+
+    @Override
+    public String getDescription() {
+        return "BLUETOOTH";
+    }
+}
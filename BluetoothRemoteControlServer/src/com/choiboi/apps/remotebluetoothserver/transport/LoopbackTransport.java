@@ -0,0 +1,97 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * In-memory transport. Each call to connect() creates a pair of pipes and
+ * hands the server end to accept(), which makes it possible to drive the
+ * server at full speed on machines without Bluetooth hardware.
+ */
+public class LoopbackTransport implements Transport {
+
+    private static final int PIPE_CAPACITY = 256 * 1024;
+
+    // Member fields
+    private final BlockingQueue<TransportConnection> mPending = new LinkedBlockingQueue<TransportConnection>();
+    private volatile boolean mClosed;
+
+    @Override
+    public void open() {
+        mClosed = false;
+    }
+
+    /*
+     * Connect a new client and return its end of the connection. The server
+     * end is returned by the next call to accept().
+     */
+    public TransportConnection connect() throws IOException {
+        if (mClosed)
+            throw new IOException("Transport closed");
+
+        Pipe toServer = new Pipe(PIPE_CAPACITY);
+        Pipe toClient = new Pipe(PIPE_CAPACITY);
+        mPending.add(new PipeConnection(toServer, toClient));
+        return new PipeConnection(toClient, toServer);
+    }
+
+    @Override
+    public TransportConnection accept() throws IOException {
+        try {
+            TransportConnection connection = mPending.take();
+            if (mClosed)
+                throw new IOException("Transport closed");
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+
+        // Wake up any thread blocked in accept()
+        mPending.add(new PipeConnection(new Pipe(1), new Pipe(1)));
+    }
+
+    @Override
+    public String getDescription() {
+        return "LOOPBACK";
+    }
+
+    /*
+     * One end of a loopback connection, reading from one pipe and writing to
+     * the other.
+     */
+    private static class PipeConnection implements TransportConnection {
+        private final Pipe mIn;
+        private final Pipe mOut;
+
+        PipeConnection(Pipe in, Pipe out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return mIn.getInputStream();
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return mOut.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            mIn.close();
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+ * Bounded in-memory byte pipe. Unlike PipedInputStream it may be written and
+ * read from any number of threads, and a reader is woken as soon as bytes are
+ * written instead of polling.
+ */
+class Pipe {
+
+    // Member fields
+    private final byte[] mBuffer;
+    private int mReadPos;
+    private int mCount;
+    private boolean mClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return Pipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return Pipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            Pipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            Pipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            Pipe.this.close();
+        }
+    };
+
+    Pipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        while (mCount == 0) {
+            if (mClosed)
+                return -1;
+            waitForChange();
+        }
+
+        int bytes = Math.min(len, mCount);
+        int first = Math.min(bytes, mBuffer.length - mReadPos);
+        System.arraycopy(mBuffer, mReadPos, b, off, first);
+        System.arraycopy(mBuffer, 0, b, off + first, bytes - first);
+        mReadPos = (mReadPos + bytes) % mBuffer.length;
+        mCount -= bytes;
+        notifyAll();
+        return bytes;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mCount == mBuffer.length && !mClosed)
+                waitForChange();
+            if (mClosed)
+                throw new IOException("Pipe closed");
+
+            int writePos = (mReadPos + mCount) % mBuffer.length;
+            int bytes = Math.min(len, Math.min(mBuffer.length - mCount, mBuffer.length - writePos));
+            System.arraycopy(b, off, mBuffer, writePos, bytes);
+            mCount += bytes;
+            off += bytes;
+            len -= bytes;
+            notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return mCount;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+ * Plain TCP transport for devices reaching the server over Wi-Fi. It speaks
+ * exactly the same frames as the Bluetooth transport.
+ */
+public class TcpTransport implements Transport {
+
+    public static final int DEFAULT_PORT = 5678;
+
+    // Member fields
+    private final int mPort;
+    private ServerSocket mServerSocket;
+
+    public TcpTransport(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mServerSocket = new ServerSocket(mPort);
+    }
+
+    @Override
+    public TransportConnection accept() throws IOException {
+        final Socket socket = mServerSocket.accept();
+
+        // Commands and acknowledgements are tiny, so do not let Nagle's
+        // algorithm hold them back.
+        socket.setTcpNoDelay(true);
+
+        return new TransportConnection() {
+            @Override
+            public InputStream openInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream openOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mServerSocket != null)
+            mServerSocket.close();
+    }
+
+    @Override
+    public String getDescription() {
+        return "TCP PORT " + (mServerSocket != null ? mServerSocket.getLocalPort() : mPort);
+    }
+}
@@ -0,0 +1,31 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+
+/*
+ * A way for the mobile device to reach the server. ProcessInputConnection only
+ * ever sees the TransportConnection handed out by accept(), so the same command
+ * and screenshot logic runs over Bluetooth, TCP or an in-memory pipe.
+ */
+public interface Transport {
+
+    /*
+     * Start listening for connections.
+     */
+    void open() throws IOException;
+
+    /*
+     * Block until the next device connects.
+     */
+    TransportConnection accept() throws IOException;
+
+    /*
+     * Stop listening. Blocked calls to accept() fail with an IOException.
+     */
+    void close() throws IOException;
+
+    /*
+     * Return a readable description of where this transport is listening.
+     */
+    String getDescription();
+}
@@ -0,0 +1,17 @@
+package com.choiboi.apps.remotebluetoothserver.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * A single connected device as seen by ProcessInputConnection.
+ */
+public interface TransportConnection {
+
+    InputStream openInputStream() throws IOException;
+
+    OutputStream openOutputStream() throws IOException;
+
+    void close() throws IOException;
+}